@@ -6,9 +6,11 @@ import io.grpc.Status;
 import io.grpc.StatusRuntimeException;
 import pt.tecnico.sauron.silo.client.Exceptions.NoServersAvailableException;
 import pt.tecnico.sauron.silo.client.SiloFrontend;
+import pt.tecnico.sauron.silo.grpc.ClientRequest;
 import pt.ulisboa.tecnico.sdis.zk.ZKNamingException;
 
 import java.io.IOException;
+import java.nio.file.Paths;
 import java.text.DateFormat;
 import java.text.SimpleDateFormat;
 import java.util.ArrayList;
@@ -53,11 +55,26 @@ public class EyeApp {
 
                 siloFrontend.camJoin(camName, latitude, longitude);
 
+                //reports no replica saved are kept on disk, also across runs
+                ReportSpool spool;
+                try {
+                    spool = new ReportSpool(Paths.get(camName + ".spool"));
+                } catch (IOException e) {
+                    System.err.println("Could not open spool " + camName + ".spool: " + e.getMessage());
+                    channel.shutdownNow();
+                    siloFrontend.close();
+                    return;
+                }
+                if (spool.hasPending()) {
+                    sendSpooled(siloFrontend, spool);
+                    System.out.println("Spooled observations successfully saved!");
+                }
 
-                processInputData(siloFrontend, camName, latitude, longitude);
+                processInputData(siloFrontend, spool, camName, latitude, longitude);
 
                 channel.shutdownNow();
 
+                spool.close();
                 siloFrontend.close();
 
             } catch (InterruptedException e) {
@@ -82,7 +99,7 @@ public class EyeApp {
 
     }
 
-    private static void processInputData(SiloFrontend siloFrontend, String camName, double lat, double log) throws InterruptedException, ZKNamingException, NoServersAvailableException {
+    private static void processInputData(SiloFrontend siloFrontend, ReportSpool spool, String camName, double lat, double log) throws InterruptedException, ZKNamingException {
 
         Scanner scanner;
         List<List<String>> observations = new ArrayList<>();
@@ -104,7 +121,7 @@ public class EyeApp {
                     //does not send request if there's nothing to add to silo server
                     if (observations.size() == 0) throw new IOException();
 
-                    else saveGivenObservations(siloFrontend, camName, observations);
+                    else saveGivenObservations(siloFrontend, spool, camName, observations);
 
                 } //do nothing when there is a comment line
                 else if (observationLine[0].startsWith("#")) {
@@ -148,25 +165,26 @@ public class EyeApp {
                     }
                 }
             } catch (StatusRuntimeException e) {
-                observations.clear();
 
-                //renew server when the previous goes down
+                //renew server when the previous goes down, spooled observations are sent again
                 if (e.getStatus().getCode().equals(Status.Code.UNAVAILABLE)) {
 
-
-                    siloFrontend.renewConnection();
-
                     try {
 
+                        siloFrontend.renewConnection();
+
                         siloFrontend.camJoin(camName, lat, log);
 
-                        siloFrontend.runPreviousCommand();
+                        sendSpooled(siloFrontend, spool);
 
                         System.out.println("Observations successfully saved!");
                     }
                     catch(StatusRuntimeException s) {
                         System.out.println(s.getStatus().getDescription());
                     }
+                    catch (NoServersAvailableException s) {
+                        System.err.println("No replica available, observations kept in spool until the next report");
+                    }
 
                 } else
                     System.out.println(e.getStatus().getDescription());
@@ -178,12 +196,16 @@ public class EyeApp {
             }
         }
 
-        saveGivenObservations(siloFrontend, camName, observations);
+        try {
+            saveGivenObservations(siloFrontend, spool, camName, observations);
+        } catch (StatusRuntimeException e) {
+            System.err.println("Observations kept in spool for the next run");
+        }
 
         scanner.close();
     }
 
-    private static void saveGivenObservations(SiloFrontend siloFrontend, String camName, List<List<String>> observations) {
+    private static void saveGivenObservations(SiloFrontend siloFrontend, ReportSpool spool, String camName, List<List<String>> observations) {
 
         DateFormat dateFormat = new SimpleDateFormat("yyyy-MM-dd HH:mm:ss");
         Date date = new Date();
@@ -195,9 +217,40 @@ public class EyeApp {
 
         }
 
-        siloFrontend.reportObs(camName, observations);
-        observations.clear();
+        if (!observations.isEmpty()) {
+            ClientRequest request = siloFrontend.buildReport(camName, observations);
+            try {
+                spool.append(request);
+            } catch (IOException e) {
+                //sent without a copy on disk
+                System.err.println("Could not spool observations: " + e.getMessage());
+                siloFrontend.sendReport(request);
+                observations.clear();
+                System.out.println("Observations successfully saved!");
+                return;
+            }
+            observations.clear();
+        }
+
+        sendSpooled(siloFrontend, spool);
         System.out.println("Observations successfully saved!");
     }
 
+    //sends the spooled reports in order with their original ids, a duplicate was saved before the replica failed
+    //only reports no replica could be reached for stay in the spool, a rejected one would block every later report
+    private static void sendSpooled(SiloFrontend siloFrontend, ReportSpool spool) {
+        for (ClientRequest request : spool.pending()) {
+            try {
+                siloFrontend.sendReport(request);
+            } catch (StatusRuntimeException e) {
+                Status.Code code = e.getStatus().getCode();
+                if (code.equals(Status.Code.UNAVAILABLE) || code.equals(Status.Code.DEADLINE_EXCEEDED))
+                    throw e;
+                if (!code.equals(Status.Code.ALREADY_EXISTS))
+                    System.err.println("Report rejected, dropping it from the spool: " + e.getStatus().getDescription());
+            }
+            spool.acknowledge();
+        }
+    }
+
 }
@@ -0,0 +1,196 @@
+package pt.tecnico.sauron.eye;
+
+import io.grpc.Status;
+import pt.tecnico.sauron.silo.client.Exceptions.NoServersAvailableException;
+import pt.tecnico.sauron.silo.client.ReportBatcher;
+import pt.tecnico.sauron.silo.client.SiloAsyncFrontend;
+import pt.tecnico.sauron.silo.grpc.UpdateResponse;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.time.LocalDateTime;
+import java.time.format.DateTimeFormatter;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.*;
+
+//runs many cameras in one process, each reading its own feed file with the eye line protocol
+//feeds are continuations on a small shared pool, a pause schedules the rest of the feed instead of holding a thread
+//all cameras share one async frontend, observations are batched per camera
+public class EyeHostApp {
+
+    //lines a feed handles before letting the other feeds run
+    private static final int LINES_PER_SLICE = 64;
+    private static final int MAX_IN_FLIGHT = 64;
+
+    private static final DateTimeFormatter FORMATTER = DateTimeFormatter.ofPattern("yyyy-MM-dd HH:mm:ss");
+
+    private static ScheduledExecutorService scheduler;
+    private static ReportBatcher batcher;
+
+    public static void main(String[] args) {
+
+        try {
+            System.out.println(EyeHostApp.class.getSimpleName());
+            System.out.println("> Eye host started");
+
+            // check arguments
+            if (args.length < 3 || args.length > 4) {
+                System.err.println("Argument(s) missing or more than expected!");
+                return;
+            }
+
+            final String host = args[0];
+            final String port = args[1];
+            final Path hostFile = Paths.get(args[2]);
+            final String repN = args.length == 4 ? args[3] : "";
+
+            List<Feed> feeds;
+            try {
+                feeds = readHostFile(hostFile);
+            } catch (IOException | RuntimeException e) {
+                System.err.println("Invalid host file: " + e.getMessage());
+                return;
+            }
+
+            SiloAsyncFrontend frontend = new SiloAsyncFrontend(host, port, repN);
+            batcher = new ReportBatcher(frontend, ReportBatcher.DEFAULT_MAX_BATCH, ReportBatcher.DEFAULT_LINGER_MILLIS, MAX_IN_FLIGHT);
+            scheduler = Executors.newScheduledThreadPool(Runtime.getRuntime().availableProcessors());
+
+            CountDownLatch done = new CountDownLatch(feeds.size());
+            for (Feed feed : feeds) {
+                feed.done = done;
+                frontend.camJoin(feed.camName, feed.latitude, feed.longitude).whenComplete((response, t) -> {
+                    if (t != null) {
+                        System.out.println(feed.camName + ": " + Status.fromThrowable(t).getDescription());
+                        feed.finish();
+                    } else
+                        scheduler.execute(feed);
+                });
+            }
+
+            done.await();
+            batcher.close();
+            scheduler.shutdown();
+            frontend.close();
+
+        } catch (InterruptedException e) {
+
+            System.err.println("Timeout interrupted");
+
+        } catch (NoServersAvailableException e) {
+            System.err.println("Server could not be found or no servers available at the moment");
+        } finally {
+            System.out.println("> Eye host closing");
+        }
+    }
+
+    //one camera per line: name,latitude,longitude,feed file relative to the host file
+    private static List<Feed> readHostFile(Path hostFile) throws IOException {
+        List<Feed> feeds = new ArrayList<>();
+        Path dir = hostFile.toAbsolutePath().getParent();
+
+        for (String line : Files.readAllLines(hostFile)) {
+            if (line.isBlank() || line.startsWith("#"))
+                continue;
+
+            String[] tokens = line.split(",");
+            if (tokens.length != 4)
+                throw new IOException("expected name,latitude,longitude,feed in " + line);
+
+            feeds.add(new Feed(tokens[0].trim(), Double.parseDouble(tokens[1].trim()), Double.parseDouble(tokens[2].trim()),
+                    dir.resolve(tokens[3].trim())));
+        }
+        return feeds;
+    }
+
+    private static class Feed implements Runnable {
+        private final String camName;
+        private final double latitude;
+        private final double longitude;
+        private final Path path;
+        private BufferedReader reader;
+        private CountDownLatch done;
+        private CompletableFuture<UpdateResponse> lastReport;
+        private int sent = 0;
+
+        Feed(String camName, double latitude, double longitude, Path path) {
+            this.camName = camName;
+            this.latitude = latitude;
+            this.longitude = longitude;
+            this.path = path;
+        }
+
+        //handles a slice of the feed, then reschedules itself
+        @Override
+        public void run() {
+            try {
+                if (this.reader == null)
+                    this.reader = Files.newBufferedReader(this.path);
+
+                for (int i = 0; i < LINES_PER_SLICE; i++) {
+                    String line = this.reader.readLine();
+                    if (line == null) {
+                        finish();
+                        return;
+                    }
+
+                    String[] observationLine = line.split(",");
+
+                    //when line is empty, send what the camera gathered so far
+                    if (observationLine[0].isBlank())
+                        batcher.flush(this.camName);
+
+                    //do nothing when there is a comment line
+                    else if (observationLine[0].startsWith("#")) {
+                    } else if (observationLine[0].equals("car") && observationLine.length == 2)
+                        add("CAR", observationLine[1]);
+
+                    else if (observationLine[0].equals("person") && observationLine.length == 2)
+                        add("PERSON", observationLine[1]);
+
+                    //pause the feed without holding a thread
+                    else if (observationLine[0].equals("zzz") && observationLine.length == 2) {
+                        scheduler.schedule(this, Integer.parseInt(observationLine[1].trim()), TimeUnit.MILLISECONDS);
+                        return;
+                    } else
+                        System.err.println(this.camName + ": Invalid input " + line);
+                }
+                scheduler.execute(this);
+
+            } catch (IOException | RuntimeException e) {
+                System.err.println(this.camName + ": could not read feed " + this.path + ": " + e.getMessage());
+                finish();
+            }
+        }
+
+        private void add(String type, String id) {
+            CompletableFuture<UpdateResponse> report = batcher.add(this.camName, type, id, LocalDateTime.now().format(FORMATTER));
+            this.sent++;
+
+            //one message per failed report, not per observation
+            if (report != this.lastReport) {
+                this.lastReport = report;
+                report.exceptionally(t -> {
+                    System.out.println(this.camName + ": " + Status.fromThrowable(t).getDescription());
+                    return null;
+                });
+            }
+        }
+
+        private void finish() {
+            batcher.flush(this.camName);
+            try {
+                if (this.reader != null)
+                    this.reader.close();
+            } catch (IOException e) {
+                //nothing left to read
+            }
+            System.out.println(this.camName + ": " + this.sent + " observations sent");
+            this.done.countDown();
+        }
+    }
+}
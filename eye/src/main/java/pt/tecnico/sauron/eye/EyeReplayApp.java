@@ -0,0 +1,286 @@
+package pt.tecnico.sauron.eye;
+
+import com.google.protobuf.ByteString;
+import io.grpc.Status;
+import pt.tecnico.sauron.silo.client.Exceptions.NoServersAvailableException;
+import pt.tecnico.sauron.silo.client.SiloAsyncFrontend;
+import pt.tecnico.sauron.silo.grpc.ObservationMessage;
+import pt.tecnico.sauron.silo.grpc.ReportRequest;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.time.LocalDateTime;
+import java.time.format.DateTimeFormatter;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicLong;
+
+//replays an observation file as fast as allowed, for load tests and backfills
+//lines are type,id,datetime and keep their time, lines without one take the time they are read
+//the file is memory-mapped and split at line boundaries into chunks parsed in parallel, so batches are not in file order
+public class EyeReplayApp {
+
+    private static final int BATCH_SIZE = 500;
+    private static final int MAX_IN_FLIGHT = 32;
+    private static final int MAX_LINE = 256;
+    //a mapping holds at most this much of the file
+    private static final long MAX_CHUNK = 1L << 30;
+
+    private static final DateTimeFormatter FORMATTER = DateTimeFormatter.ofPattern("yyyy-MM-dd HH:mm:ss");
+    private static final ReportRequest END = ReportRequest.getDefaultInstance();
+
+    private static final AtomicLong invalidLines = new AtomicLong();
+
+    public static void main(String[] args) {
+
+        System.out.println(EyeReplayApp.class.getSimpleName());
+        System.out.println("> Eye replay started");
+        try {
+            // check arguments
+            if (args.length < 6 || args.length > 8) {
+                System.err.println("Argument(s) missing or more than expected!");
+                return;
+            }
+
+            final String host = args[0];
+            final String port = args[1];
+            final String camName = args[2];
+            final double latitude = Double.parseDouble(args[3]);
+            final double longitude = Double.parseDouble(args[4]);
+            final Path file = Paths.get(args[5]);
+            //observations per second, zero sends as fast as the replica answers
+            final long rate = args.length >= 7 ? Long.parseLong(args[6]) : 0;
+            final String repN = args.length == 8 ? args[7] : "";
+
+            try (SiloAsyncFrontend frontend = new SiloAsyncFrontend(host, port, repN)) {
+                frontend.camJoin(camName, latitude, longitude).join();
+                replay(frontend, camName, file, rate);
+            }
+
+        } catch (NumberFormatException e) {
+            System.err.println("Invalid argument: " + e.getMessage());
+        } catch (IOException e) {
+            System.err.println("Could not read file: " + e.getMessage());
+        } catch (CompletionException e) {
+            System.out.println("Caught exception with description: " + Status.fromThrowable(e.getCause()).getDescription());
+        } catch (InterruptedException e) {
+            System.err.println("Replay interrupted");
+        } catch (NoServersAvailableException e) {
+            System.err.println("Server could not be found or no servers available at the moment");
+        } finally {
+            System.out.println("> Eye replay closing");
+        }
+    }
+
+    private static void replay(SiloAsyncFrontend frontend, String camName, Path file, long rate) throws IOException, InterruptedException {
+        int threads = Runtime.getRuntime().availableProcessors();
+        BlockingQueue<ReportRequest> batches = new ArrayBlockingQueue<>(threads * 4);
+        ExecutorService parsers = Executors.newFixedThreadPool(threads);
+
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            List<Future<?>> parsed = new ArrayList<>();
+            for (long[] chunk : split(channel, threads)) {
+                MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, chunk[0], chunk[1] - chunk[0]);
+                parsed.add(parsers.submit(() -> {
+                    parse(buffer, camName, batches);
+                    return null;
+                }));
+            }
+            //the queue is closed once every chunk is parsed
+            parsers.submit(() -> {
+                for (Future<?> future : parsed) {
+                    try {
+                        future.get();
+                    } catch (ExecutionException e) {
+                        System.err.println("Could not parse chunk: " + e.getCause().getMessage());
+                    }
+                }
+                batches.put(END);
+                return null;
+            });
+
+            send(frontend, batches, rate);
+        } finally {
+            parsers.shutdownNow();
+        }
+    }
+
+    //ranges of roughly equal size, each one ending after a newline
+    private static List<long[]> split(FileChannel channel, int parts) throws IOException {
+        long size = channel.size();
+        long chunk = Math.min(MAX_CHUNK, Math.max(1, size / parts));
+        List<long[]> chunks = new ArrayList<>();
+        ByteBuffer one = ByteBuffer.allocate(1);
+
+        long start = 0;
+        while (start < size) {
+            long end = Math.min(size, start + chunk);
+            //moves the end past the next newline
+            while (end < size) {
+                one.clear();
+                channel.read(one, end - 1);
+                if (one.get(0) == '\n')
+                    break;
+                end++;
+            }
+            chunks.add(new long[]{start, end});
+            start = end;
+        }
+        return chunks;
+    }
+
+    private static void parse(MappedByteBuffer buffer, String camName, BlockingQueue<ReportRequest> batches) throws InterruptedException {
+        byte[] line = new byte[MAX_LINE];
+        int length = 0;
+        boolean overflow = false;
+        ReportRequest.Builder batch = ReportRequest.newBuilder().setCamName(camName);
+
+        while (buffer.hasRemaining()) {
+            byte b = buffer.get();
+            if (b == '\n' || !buffer.hasRemaining()) {
+                if (b != '\n' && b != '\r' && length < MAX_LINE)
+                    line[length++] = b;
+                if (!overflow)
+                    parseLine(line, length, batch);
+                else
+                    invalidLines.incrementAndGet();
+                length = 0;
+                overflow = false;
+
+                if (batch.getObservationCount() >= BATCH_SIZE) {
+                    batches.put(batch.build());
+                    batch = ReportRequest.newBuilder().setCamName(camName);
+                }
+            } else if (b != '\r') {
+                if (length < MAX_LINE)
+                    line[length++] = b;
+                else
+                    overflow = true;
+            }
+        }
+        if (batch.getObservationCount() > 0)
+            batches.put(batch.build());
+    }
+
+    //type,id[,datetime], comments, empty lines and pauses are skipped
+    private static void parseLine(byte[] line, int length, ReportRequest.Builder batch) {
+        if (length == 0 || line[0] == '#' || isBlank(line, length))
+            return;
+
+        int first = indexOf(line, 0, length);
+        if (first < 0) {
+            invalidLines.incrementAndGet();
+            return;
+        }
+
+        String type;
+        if (matches(line, 0, first, "car"))
+            type = "CAR";
+        else if (matches(line, 0, first, "person"))
+            type = "PERSON";
+        else {
+            if (!matches(line, 0, first, "zzz"))
+                invalidLines.incrementAndGet();
+            return;
+        }
+
+        int second = indexOf(line, first + 1, length);
+        int idEnd = second < 0 ? length : second;
+        ObservationMessage.Builder observation = ObservationMessage.newBuilder()
+                .setType(type)
+                .setIdBytes(ByteString.copyFrom(line, first + 1, idEnd - first - 1));
+
+        if (second < 0)
+            observation.setDatetime(LocalDateTime.now().format(FORMATTER));
+        else
+            observation.setDatetimeBytes(ByteString.copyFrom(line, second + 1, length - second - 1));
+
+        batch.addObservation(observation);
+    }
+
+    //sends batches paced to the rate, with at most MAX_IN_FLIGHT reports outstanding
+    private static void send(SiloAsyncFrontend frontend, BlockingQueue<ReportRequest> batches, long rate) throws InterruptedException {
+        Semaphore inFlight = new Semaphore(MAX_IN_FLIGHT);
+        AtomicLong saved = new AtomicLong();
+        AtomicLong failed = new AtomicLong();
+        long reports = 0;
+
+        long start = System.nanoTime();
+        long lastReport = start;
+        long lastSaved = 0;
+        long next = start;
+
+        while (true) {
+            ReportRequest batch = batches.take();
+            if (batch == END)
+                break;
+
+            if (rate > 0) {
+                long wait = next - System.nanoTime();
+                if (wait > 0)
+                    TimeUnit.NANOSECONDS.sleep(wait);
+                next = Math.max(next, System.nanoTime() - TimeUnit.SECONDS.toNanos(1)) + batch.getObservationCount() * 1_000_000_000L / rate;
+            }
+
+            inFlight.acquire();
+            reports++;
+            frontend.sendReport(frontend.buildReport(batch)).whenComplete((response, t) -> {
+                inFlight.release();
+                if (t != null) {
+                    failed.addAndGet(batch.getObservationCount());
+                    System.out.println("Report failed: " + Status.fromThrowable(t).getDescription());
+                } else
+                    saved.addAndGet(batch.getObservationCount());
+            });
+
+            //achieved throughput, once per second
+            long now = System.nanoTime();
+            if (now - lastReport >= TimeUnit.SECONDS.toNanos(1)) {
+                long current = saved.get();
+                System.out.printf("%d observations/s%n", (current - lastSaved) * 1_000_000_000L / (now - lastReport));
+                lastReport = now;
+                lastSaved = current;
+            }
+        }
+        inFlight.acquire(MAX_IN_FLIGHT);
+
+        double seconds = (System.nanoTime() - start) / 1e9;
+        System.out.printf("Replayed %d observations in %d reports in %.2f s, %.0f observations/s%n",
+                saved.get(), reports, seconds, saved.get() / seconds);
+        if (failed.get() > 0 || invalidLines.get() > 0)
+            System.out.printf("%d observations failed, %d invalid lines%n", failed.get(), invalidLines.get());
+    }
+
+    private static int indexOf(byte[] line, int from, int length) {
+        for (int i = from; i < length; i++) {
+            if (line[i] == ',')
+                return i;
+        }
+        return -1;
+    }
+
+    private static boolean matches(byte[] line, int start, int end, String token) {
+        if (end - start != token.length())
+            return false;
+        for (int i = 0; i < token.length(); i++) {
+            if (line[start + i] != token.charAt(i))
+                return false;
+        }
+        return true;
+    }
+
+    private static boolean isBlank(byte[] line, int length) {
+        for (int i = 0; i < length; i++) {
+            if (line[i] != ' ' && line[i] != '\t')
+                return false;
+        }
+        return true;
+    }
+}
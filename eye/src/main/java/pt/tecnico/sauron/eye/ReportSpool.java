@@ -0,0 +1,136 @@
+package pt.tecnico.sauron.eye;
+
+import com.google.protobuf.InvalidProtocolBufferException;
+import pt.tecnico.sauron.silo.grpc.ClientRequest;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+
+//append-only spool of reports no replica has acknowledged yet, kept in a memory-mapped file
+//header holds a magic number, the acknowledged offset and the write offset, records are length-prefixed ClientRequests
+//a record is written before the header points past it, so a crash never exposes half a record
+//reports keep their opId, sending one again after a crash is recognized by the server as a duplicate
+public class ReportSpool implements AutoCloseable {
+
+    public static final int DEFAULT_SIZE = 8 * 1024 * 1024;
+
+    private static final int MAGIC = 0x53504c31;
+    private static final int HEADER = 16;
+
+    private final FileChannel channel;
+    private final MappedByteBuffer buffer;
+    private int acknowledged;
+    private int written;
+
+    public ReportSpool(Path path) throws IOException {
+        this(path, DEFAULT_SIZE);
+    }
+
+    public ReportSpool(Path path, int size) throws IOException {
+        this.channel = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        int capacity = (int) Math.max(size, this.channel.size());
+        this.buffer = this.channel.map(FileChannel.MapMode.READ_WRITE, 0, capacity);
+
+        long offsets = this.buffer.getLong(8);
+        this.acknowledged = (int) (offsets >>> 32);
+        this.written = (int) offsets;
+        if (this.buffer.getInt(0) != MAGIC || this.acknowledged < HEADER || this.written < this.acknowledged || this.written > capacity) {
+            //new file, or not a spool
+            this.buffer.putInt(0, MAGIC);
+            setOffsets(HEADER, HEADER);
+        }
+    }
+
+    public synchronized void append(ClientRequest request) throws IOException {
+        byte[] bytes = request.toByteArray();
+        int needed = Integer.BYTES + bytes.length;
+
+        if (this.written + needed > this.buffer.capacity())
+            compact();
+        if (this.written + needed > this.buffer.capacity())
+            throw new IOException("Report spool is full");
+
+        this.buffer.putInt(this.written, bytes.length);
+        ByteBuffer record = this.buffer.duplicate();
+        record.position(this.written + Integer.BYTES);
+        record.put(bytes);
+        this.buffer.force();
+
+        setOffsets(this.acknowledged, this.written + needed);
+    }
+
+    //reports not acknowledged yet, oldest first
+    public synchronized List<ClientRequest> pending() {
+        List<ClientRequest> requests = new ArrayList<>();
+        int offset = this.acknowledged;
+        while (offset < this.written) {
+            int length = this.buffer.getInt(offset);
+            byte[] bytes = new byte[length];
+            ByteBuffer record = this.buffer.duplicate();
+            record.position(offset + Integer.BYTES);
+            record.get(bytes);
+            try {
+                requests.add(ClientRequest.parseFrom(bytes));
+            } catch (InvalidProtocolBufferException e) {
+                System.err.println("Corrupt report in spool, dropping the rest of it");
+                setOffsets(this.acknowledged, offset);
+                break;
+            }
+            offset += Integer.BYTES + length;
+        }
+        return requests;
+    }
+
+    public synchronized boolean hasPending() {
+        return this.acknowledged < this.written;
+    }
+
+    //the oldest pending report was saved by a replica
+    public synchronized void acknowledge() {
+        if (!hasPending())
+            return;
+        int next = this.acknowledged + Integer.BYTES + this.buffer.getInt(this.acknowledged);
+        if (next >= this.written)
+            setOffsets(HEADER, HEADER);
+        else
+            setOffsets(next, this.written);
+    }
+
+    //moves the pending reports to the start of the file, only when they do not overlap their new place
+    private void compact() {
+        int length = this.written - this.acknowledged;
+        if (this.acknowledged - HEADER < length)
+            return;
+
+        byte[] bytes = new byte[length];
+        ByteBuffer source = this.buffer.duplicate();
+        source.position(this.acknowledged);
+        source.get(bytes);
+        ByteBuffer target = this.buffer.duplicate();
+        target.position(HEADER);
+        target.put(bytes);
+        this.buffer.force();
+
+        setOffsets(HEADER, HEADER + length);
+    }
+
+    private void setOffsets(int acknowledged, int written) {
+        this.acknowledged = acknowledged;
+        this.written = written;
+        //both offsets in one aligned store, a crash leaves either the old or the new pair
+        this.buffer.putLong(8, ((long) acknowledged << 32) | (written & 0xffffffffL));
+        this.buffer.force();
+    }
+
+    @Override
+    public synchronized void close() throws IOException {
+        this.buffer.force();
+        this.channel.close();
+    }
+}
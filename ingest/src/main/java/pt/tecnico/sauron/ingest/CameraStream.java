@@ -0,0 +1,232 @@
+package pt.tecnico.sauron.ingest;
+
+import com.google.protobuf.ByteString;
+import io.grpc.Status;
+import io.grpc.stub.ClientCallStreamObserver;
+import io.grpc.stub.ClientResponseObserver;
+import pt.tecnico.sauron.silo.client.SiloAsyncFrontend;
+import pt.tecnico.sauron.silo.grpc.ClientRequest;
+import pt.tecnico.sauron.silo.grpc.ClientResponse;
+import pt.tecnico.sauron.silo.grpc.ObservationMessage;
+import pt.tecnico.sauron.silo.grpc.ReportRequest;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.List;
+
+//observations of one connected camera, batched and sent as messages of client-streaming reports
+//batches queue until the camera joined and the stream is ready for them, a stream is closed after STREAM_BATCHES
+//so failures and the merged timestamp are known while the camera is still connected
+//reports of a stream are kept until it is answered, a failed stream's reports are resent with the same ids
+public class CameraStream {
+
+    //batches sent on one stream before it is closed and a new one opened
+    public static final int STREAM_BATCHES = 64;
+    //the gateway stops reading the camera while this many batches are queued
+    public static final int MAX_QUEUED_BATCHES = 16;
+    //new streams opened for reports left unanswered after the camera disconnected
+    public static final int MAX_CLOSED_RETRIES = 3;
+
+    private final SiloAsyncFrontend frontend;
+    private final String camName;
+    private final int maxBatchSize;
+
+    private ReportRequest.Builder batch;
+    private long batchStarted;
+
+    private boolean joined = false;
+    private boolean closed = false;
+    //batches waiting for the camera to join or for the stream to be ready
+    private final Deque<ReportRequest> outgoing = new ArrayDeque<>();
+    //reports of failed streams, sent again before the queued batches
+    private final Deque<ClientRequest> resend = new ArrayDeque<>();
+    private ReportStream stream;
+    private int closedRetries = 0;
+    private long sent = 0;
+
+    public CameraStream(SiloAsyncFrontend frontend, String camName, double latitude, double longitude, int maxBatchSize) {
+        this.frontend = frontend;
+        this.camName = camName;
+        this.maxBatchSize = maxBatchSize;
+        this.batch = ReportRequest.newBuilder().setCamName(camName);
+
+        frontend.camJoin(camName, latitude, longitude).whenComplete((response, t) -> joined(t));
+    }
+
+    private synchronized void joined(Throwable t) {
+        if (t != null) {
+            System.out.println(this.camName + ": " + Status.fromThrowable(t).getDescription());
+            this.outgoing.clear();
+            this.resend.clear();
+            this.closed = true;
+            return;
+        }
+        this.joined = true;
+        if (this.closed)
+            sendAll();
+        else
+            drain();
+    }
+
+    //type is a shared constant and id a copy of the bytes read, each observation is one message in the batch
+    public synchronized void add(String type, ByteString id, String datetime) {
+        if (this.closed)
+            return;
+        if (this.batch.getObservationCount() == 0)
+            this.batchStarted = System.nanoTime();
+
+        this.batch.addObservation(ObservationMessage.newBuilder().setType(type).setIdBytes(id).setDatetime(datetime));
+        if (this.batch.getObservationCount() >= this.maxBatchSize)
+            flush();
+    }
+
+    //sends the batch if its first observation is older than the linger time, and retries batches a failed stream left queued
+    public synchronized void flushIfLingering(long lingerNanos) {
+        if (this.batch.getObservationCount() > 0 && System.nanoTime() - this.batchStarted >= lingerNanos)
+            flush();
+        else if (this.joined)
+            drain();
+    }
+
+    public synchronized void flush() {
+        if (this.batch.getObservationCount() == 0)
+            return;
+
+        ReportRequest report = this.batch.build();
+        this.batch = ReportRequest.newBuilder().setCamName(this.camName);
+        if (this.closed)
+            return;
+        this.outgoing.add(report);
+        if (this.joined)
+            drain();
+    }
+
+    //sends resent and queued batches while the stream takes them, the rest go when it is ready again
+    private void drain() {
+        while (!this.resend.isEmpty() || !this.outgoing.isEmpty()) {
+            if (this.stream == null)
+                openStream();
+            if (!this.stream.requests.isReady())
+                return;
+            sendNext();
+        }
+    }
+
+    //on close everything left is handed to the stream, which buffers it
+    private void sendAll() {
+        while (!this.resend.isEmpty() || !this.outgoing.isEmpty()) {
+            if (this.stream == null)
+                openStream();
+            sendNext();
+        }
+        completeStream();
+    }
+
+    //a resent report keeps the id it was built with, so the server applies it once
+    private void sendNext() {
+        if (!this.resend.isEmpty()) {
+            send(this.resend.poll());
+            return;
+        }
+        ReportRequest report = this.outgoing.poll();
+        send(this.frontend.buildReport(report));
+        this.sent += report.getObservationCount();
+    }
+
+    private void send(ClientRequest request) {
+        ReportStream stream = this.stream;
+        stream.unanswered.add(request);
+        stream.requests.onNext(request);
+        if (stream.unanswered.size() >= STREAM_BATCHES)
+            completeStream();
+    }
+
+    private void openStream() {
+        this.stream = new ReportStream();
+        this.frontend.reportStream(this.stream);
+    }
+
+    private synchronized void ready() {
+        if (this.joined && !this.closed)
+            drain();
+    }
+
+    //the answer covers every report of the stream
+    private synchronized void streamCompleted(ReportStream stream) {
+        stream.unanswered.clear();
+    }
+
+    //reports of the failed stream go first on a new stream, at the next flush or right away once closed
+    private synchronized void streamFailed(ReportStream stream, Throwable t) {
+        System.out.println(this.camName + ": " + Status.fromThrowable(t).getDescription());
+        if (this.stream == stream)
+            this.stream = null;
+        for (int i = stream.unanswered.size() - 1; i >= 0; i--)
+            this.resend.addFirst(stream.unanswered.get(i));
+        stream.unanswered.clear();
+
+        if (!this.closed || !this.joined)
+            return;
+        if (++this.closedRetries > MAX_CLOSED_RETRIES) {
+            System.out.println(this.camName + ": " + this.resend.size() + " batches not sent");
+            this.resend.clear();
+            return;
+        }
+        sendAll();
+    }
+
+    private void completeStream() {
+        if (this.stream != null)
+            this.stream.requests.onCompleted();
+        this.stream = null;
+    }
+
+    //the gateway stops reading the camera until the stream catches up
+    public synchronized boolean isBackedUp() {
+        return this.outgoing.size() + this.resend.size() >= MAX_QUEUED_BATCHES;
+    }
+
+    //sends what is left and closes the stream, once the camera joined
+    public synchronized void close() {
+        flush();
+        this.closed = true;
+        if (this.joined)
+            sendAll();
+    }
+
+    public String getCamName() {
+        return camName;
+    }
+
+    public synchronized long getSent() {
+        return sent;
+    }
+
+    //one client-streaming call and the reports sent on it that are not answered yet
+    private class ReportStream implements ClientResponseObserver<ClientRequest, ClientResponse> {
+        private ClientCallStreamObserver<ClientRequest> requests;
+        private final List<ClientRequest> unanswered = new ArrayList<>();
+
+        //runs inside openStream, before the call starts
+        @Override
+        public void beforeStart(ClientCallStreamObserver<ClientRequest> requestStream) {
+            this.requests = requestStream;
+            requestStream.setOnReadyHandler(CameraStream.this::ready);
+        }
+
+        @Override
+        public void onNext(ClientResponse response) {
+        }
+
+        @Override
+        public void onError(Throwable t) {
+            streamFailed(this, t);
+        }
+
+        @Override
+        public void onCompleted() {
+            streamCompleted(this);
+        }
+    }
+}
@@ -0,0 +1,135 @@
+package pt.tecnico.sauron.ingest;
+
+import com.google.protobuf.ByteString;
+
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+
+//one camera connected to the gateway, reading the eye line protocol
+//the first line names the camera: cam,<name>,<latitude>,<longitude>
+//lines are assembled in a reused buffer and matched byte by byte, without building strings
+public class Connection {
+
+    private static final int MAX_LINE = 256;
+
+    private static final byte[] CAM = "cam,".getBytes(StandardCharsets.US_ASCII);
+    private static final byte[] CAR = "car,".getBytes(StandardCharsets.US_ASCII);
+    private static final byte[] PERSON = "person,".getBytes(StandardCharsets.US_ASCII);
+    private static final byte[] ZZZ = "zzz,".getBytes(StandardCharsets.US_ASCII);
+
+    private final SocketChannel socket;
+    private final IngestGateway gateway;
+
+    private final byte[] line = new byte[MAX_LINE];
+    private int length = 0;
+    //a line longer than MAX_LINE is dropped whole
+    private boolean overflow = false;
+
+    private CameraStream camera;
+
+    public Connection(SocketChannel socket, IngestGateway gateway) {
+        this.socket = socket;
+        this.gateway = gateway;
+    }
+
+    //called by the selector thread with the bytes just read
+    public void feed(ByteBuffer buffer) {
+        while (buffer.hasRemaining()) {
+            byte b = buffer.get();
+            if (b == '\n') {
+                if (!this.overflow)
+                    handleLine();
+                this.length = 0;
+                this.overflow = false;
+            } else if (b != '\r') {
+                if (this.length < MAX_LINE)
+                    this.line[this.length++] = b;
+                else
+                    this.overflow = true;
+            }
+        }
+    }
+
+    private void handleLine() {
+        //when line is empty, send what the camera gathered so far
+        if (isBlank()) {
+            if (this.camera != null)
+                this.camera.flush();
+            return;
+        }
+        //comment line
+        if (this.line[0] == '#')
+            return;
+
+        if (this.camera == null) {
+            if (startsWith(CAM))
+                join();
+            else
+                invalid();
+            return;
+        }
+
+        if (startsWith(CAR) && this.length > CAR.length)
+            this.camera.add("CAR", id(CAR.length), this.gateway.now());
+        else if (startsWith(PERSON) && this.length > PERSON.length)
+            this.camera.add("PERSON", id(PERSON.length), this.gateway.now());
+        //pauses belong to scripted feeds, a live camera paces itself
+        else if (!startsWith(ZZZ))
+            invalid();
+    }
+
+    //the handshake is the only line turned into strings
+    private void join() {
+        String[] tokens = new String(this.line, CAM.length, this.length - CAM.length, StandardCharsets.UTF_8).split(",");
+        try {
+            if (tokens.length != 3)
+                throw new NumberFormatException();
+            this.camera = this.gateway.openCamera(tokens[0].trim(), Double.parseDouble(tokens[1].trim()), Double.parseDouble(tokens[2].trim()));
+        } catch (NumberFormatException e) {
+            invalid();
+        }
+    }
+
+    private ByteString id(int start) {
+        int end = this.length;
+        while (end > start && this.line[end - 1] == ' ')
+            end--;
+        return ByteString.copyFrom(this.line, start, end - start);
+    }
+
+    private boolean startsWith(byte[] prefix) {
+        if (this.length < prefix.length)
+            return false;
+        for (int i = 0; i < prefix.length; i++) {
+            if (this.line[i] != prefix[i])
+                return false;
+        }
+        return true;
+    }
+
+    private boolean isBlank() {
+        for (int i = 0; i < this.length; i++) {
+            if (this.line[i] != ' ' && this.line[i] != '\t')
+                return false;
+        }
+        return true;
+    }
+
+    private void invalid() {
+        System.err.println(this.socket.socket().getRemoteSocketAddress() + ": Invalid input");
+    }
+
+    public boolean isBackedUp() {
+        return this.camera != null && this.camera.isBackedUp();
+    }
+
+    public void close() {
+        if (this.camera != null)
+            this.gateway.closeCamera(this.camera);
+    }
+
+    public SocketChannel getSocket() {
+        return socket;
+    }
+}
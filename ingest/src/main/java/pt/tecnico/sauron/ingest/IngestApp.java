@@ -0,0 +1,49 @@
+package pt.tecnico.sauron.ingest;
+
+import pt.tecnico.sauron.silo.client.Exceptions.NoServersAvailableException;
+import pt.tecnico.sauron.silo.client.SiloAsyncFrontend;
+
+import java.io.IOException;
+
+
+public class IngestApp {
+
+    public static void main(String[] args) {
+
+        System.out.println(IngestApp.class.getSimpleName());
+
+        // receive and print arguments
+        System.out.printf("Received %d arguments%n", args.length);
+        for (int i = 0; i < args.length; i++) {
+            System.out.printf("arg[%d] = %s%n", i, args[i]);
+        }
+
+        // check arguments
+        if (args.length < 3 || args.length > 4) {
+            System.err.println("Argument(s) missing or more than expected!");
+            System.err.printf("Usage: java %s zooHost zooPort port [replica]%n", IngestApp.class.getName());
+            return;
+        }
+
+        final String zooHost = args[0];
+        final String zooPort = args[1];
+        final int port = Integer.parseInt(args[2]);
+        final String repN = args.length == 4 ? args[3] : "";
+
+        try (SiloAsyncFrontend frontend = new SiloAsyncFrontend(zooHost, zooPort, repN);
+             IngestGateway gateway = new IngestGateway(frontend, port)) {
+
+            Runtime.getRuntime().addShutdownHook(new Thread(gateway::close));
+
+            System.out.println("Ingest gateway listening on port " + port);
+            gateway.run();
+
+        } catch (NoServersAvailableException e) {
+            System.err.println("Server could not be found or no servers available at the moment");
+        } catch (IOException e) {
+            System.err.println("Could not open port " + port + ": " + e.getMessage());
+        } finally {
+            System.out.println("> Ingest gateway closing");
+        }
+    }
+}
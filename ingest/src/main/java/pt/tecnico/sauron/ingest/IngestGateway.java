@@ -0,0 +1,206 @@
+package pt.tecnico.sauron.ingest;
+
+import pt.tecnico.sauron.silo.client.SiloAsyncFrontend;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.time.LocalDateTime;
+import java.time.format.DateTimeFormatter;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+//accepts camera connections and reads all of them from a single selector thread
+//observations are batched per camera and forwarded as client-streaming reports
+public class IngestGateway implements Runnable, AutoCloseable {
+
+    public static final int DEFAULT_MAX_BATCH = 500;
+    public static final long DEFAULT_LINGER_MILLIS = 100;
+
+    private static final int READ_BUFFER_SIZE = 64 * 1024;
+    private static final DateTimeFormatter FORMATTER = DateTimeFormatter.ofPattern("yyyy-MM-dd HH:mm:ss");
+
+    private final SiloAsyncFrontend frontend;
+    private final int maxBatchSize;
+    private final long lingerNanos;
+
+    private final Selector selector;
+    private final ServerSocketChannel server;
+    //shared by every connection, only the selector thread reads into it
+    private final ByteBuffer readBuffer = ByteBuffer.allocateDirect(READ_BUFFER_SIZE);
+    private final Set<CameraStream> cameras = ConcurrentHashMap.newKeySet();
+    //connections not read while their camera is backed up, only the selector thread uses it
+    private final Set<SelectionKey> paused = new HashSet<>();
+    private final long lingerMillis;
+    private final ScheduledExecutorService linger = Executors.newSingleThreadScheduledExecutor(runnable -> {
+        Thread thread = new Thread(runnable, "ingest-linger");
+        thread.setDaemon(true);
+        return thread;
+    });
+    private volatile boolean running = true;
+
+    //observations of the same second share the formatted time
+    private long currentSecond = -1;
+    private String currentTime;
+
+    public IngestGateway(SiloAsyncFrontend frontend, int port) throws IOException {
+        this(frontend, port, DEFAULT_MAX_BATCH, DEFAULT_LINGER_MILLIS);
+    }
+
+    public IngestGateway(SiloAsyncFrontend frontend, int port, int maxBatchSize, long lingerMillis) throws IOException {
+        this.frontend = frontend;
+        this.maxBatchSize = maxBatchSize;
+        this.lingerMillis = lingerMillis;
+        this.lingerNanos = TimeUnit.MILLISECONDS.toNanos(lingerMillis);
+
+        this.selector = Selector.open();
+        this.server = ServerSocketChannel.open();
+        this.server.bind(new InetSocketAddress(port));
+        this.server.configureBlocking(false);
+        this.server.register(this.selector, SelectionKey.OP_ACCEPT);
+
+        this.linger.scheduleWithFixedDelay(() -> {
+            for (CameraStream camera : this.cameras)
+                camera.flushIfLingering(this.lingerNanos);
+        }, lingerMillis, lingerMillis, TimeUnit.MILLISECONDS);
+    }
+
+    @Override
+    public void run() {
+        while (this.running) {
+            try {
+                //paused connections are checked again every linger period
+                if (this.paused.isEmpty())
+                    this.selector.select();
+                else
+                    this.selector.select(this.lingerMillis);
+            } catch (IOException e) {
+                System.err.println("Selector failed: " + e.getMessage());
+                return;
+            }
+            resume();
+
+            Iterator<SelectionKey> keys = this.selector.selectedKeys().iterator();
+            while (keys.hasNext()) {
+                SelectionKey key = keys.next();
+                keys.remove();
+
+                if (!key.isValid())
+                    continue;
+                if (key.isAcceptable())
+                    accept();
+                else if (key.isReadable())
+                    read(key);
+            }
+        }
+        shutdown();
+    }
+
+    private void accept() {
+        try {
+            SocketChannel socket = this.server.accept();
+            if (socket == null)
+                return;
+            socket.configureBlocking(false);
+            socket.register(this.selector, SelectionKey.OP_READ, new Connection(socket, this));
+        } catch (IOException e) {
+            System.err.println("Could not accept connection: " + e.getMessage());
+        }
+    }
+
+    private void read(SelectionKey key) {
+        Connection connection = (Connection) key.attachment();
+        int read;
+        try {
+            this.readBuffer.clear();
+            read = connection.getSocket().read(this.readBuffer);
+        } catch (IOException e) {
+            read = -1;
+        }
+
+        if (read < 0) {
+            key.cancel();
+            connection.close();
+            try {
+                connection.getSocket().close();
+            } catch (IOException e) {
+                //already gone
+            }
+            return;
+        }
+
+        this.readBuffer.flip();
+        connection.feed(this.readBuffer);
+
+        //the camera waits in its socket buffer, and then in TCP, until the stream catches up
+        if (connection.isBackedUp()) {
+            key.interestOps(0);
+            this.paused.add(key);
+        }
+    }
+
+    private void resume() {
+        Iterator<SelectionKey> keys = this.paused.iterator();
+        while (keys.hasNext()) {
+            SelectionKey key = keys.next();
+            if (!key.isValid())
+                keys.remove();
+            else if (!((Connection) key.attachment()).isBackedUp()) {
+                key.interestOps(SelectionKey.OP_READ);
+                keys.remove();
+            }
+        }
+    }
+
+    CameraStream openCamera(String camName, double latitude, double longitude) {
+        CameraStream camera = new CameraStream(this.frontend, camName, latitude, longitude, this.maxBatchSize);
+        this.cameras.add(camera);
+        System.out.println("Camera " + camName + " connected");
+        return camera;
+    }
+
+    void closeCamera(CameraStream camera) {
+        this.cameras.remove(camera);
+        camera.close();
+        System.out.println("Camera " + camera.getCamName() + " disconnected, " + camera.getSent() + " observations sent");
+    }
+
+    //only called from the selector thread
+    String now() {
+        long second = System.currentTimeMillis() / 1000;
+        if (second != this.currentSecond) {
+            this.currentSecond = second;
+            this.currentTime = LocalDateTime.now().format(FORMATTER);
+        }
+        return this.currentTime;
+    }
+
+    private void shutdown() {
+        for (SelectionKey key : this.selector.keys()) {
+            if (key.attachment() instanceof Connection)
+                ((Connection) key.attachment()).close();
+        }
+        this.linger.shutdown();
+        try {
+            this.selector.close();
+            this.server.close();
+        } catch (IOException e) {
+            System.err.println("Could not close gateway: " + e.getMessage());
+        }
+    }
+
+    @Override
+    public void close() {
+        this.running = false;
+        this.selector.wakeup();
+    }
+}
@@ -0,0 +1,27 @@
+package pt.tecnico.sauron.silo.client;
+
+import java.util.concurrent.ThreadLocalRandom;
+
+//exponential backoff with jitter, attempt n waits between half and all of min(max, base * 2^n)
+//the jitter keeps clients that lost the same replica from retrying in lockstep
+public class Backoff {
+
+    private final long baseMillis;
+    private final long maxMillis;
+    private int attempt = 0;
+
+    public Backoff(long baseMillis, long maxMillis) {
+        this.baseMillis = baseMillis;
+        this.maxMillis = maxMillis;
+    }
+
+    public long nextDelayMillis() {
+        long cap = Math.min(this.maxMillis, this.baseMillis << Math.min(this.attempt, 30));
+        this.attempt++;
+        return cap / 2 + ThreadLocalRandom.current().nextLong(cap / 2 + 1);
+    }
+
+    public void reset() {
+        this.attempt = 0;
+    }
+}
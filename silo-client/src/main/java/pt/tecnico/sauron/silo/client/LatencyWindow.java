@@ -0,0 +1,32 @@
+package pt.tecnico.sauron.silo.client;
+
+import java.util.Arrays;
+
+//latencies of the most recent calls, to estimate their percentiles
+public class LatencyWindow {
+
+    private final long[] samples;
+    private int next = 0;
+    private int count = 0;
+
+    public LatencyWindow(int size) {
+        this.samples = new long[size];
+    }
+
+    public synchronized void record(long nanos) {
+        this.samples[this.next] = nanos;
+        this.next = (this.next + 1) % this.samples.length;
+        this.count = Math.min(this.count + 1, this.samples.length);
+    }
+
+    //-1 while nothing was recorded
+    public synchronized long percentile(double percentile) {
+        if (this.count == 0)
+            return -1;
+
+        long[] sorted = Arrays.copyOf(this.samples, this.count);
+        Arrays.sort(sorted);
+        int index = (int) Math.ceil(percentile * this.count) - 1;
+        return sorted[Math.max(0, Math.min(index, this.count - 1))];
+    }
+}
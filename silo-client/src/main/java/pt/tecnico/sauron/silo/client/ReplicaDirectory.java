@@ -0,0 +1,136 @@
+package pt.tecnico.sauron.silo.client;
+
+import org.apache.zookeeper.KeeperException;
+import org.apache.zookeeper.WatchedEvent;
+import org.apache.zookeeper.Watcher;
+import org.apache.zookeeper.ZooKeeper;
+import pt.ulisboa.tecnico.sdis.zk.ZKNaming;
+import pt.ulisboa.tecnico.sdis.zk.ZKNamingException;
+import pt.ulisboa.tecnico.sdis.zk.ZKRecord;
+
+import java.io.IOException;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+
+//view of the registered replicas and followers, kept up to date by zookeeper watches
+//while the watch of a path cannot be set, every call lists its records again and retries the watch
+public class ReplicaDirectory implements Watcher, AutoCloseable {
+
+    public static final String REPLICAS_PATH = "/grpc/sauron/silo";
+    public static final String FOLLOWERS_PATH = "/grpc/sauron/follower";
+
+    private static final int SESSION_TIMEOUT = 10000;
+
+    private final String zooHost;
+    private final String zooPort;
+    private final ZKNaming zkNaming;
+    private ZooKeeper zooKeeper;
+    //paths whose watch is armed
+    private final Set<String> watched = ConcurrentHashMap.newKeySet();
+
+    private volatile List<ZKRecord> replicas = List.of();
+    private volatile List<ZKRecord> followers = List.of();
+
+    public ReplicaDirectory(String zooHost, String zooPort) {
+        this.zooHost = zooHost;
+        this.zooPort = zooPort;
+        this.zkNaming = new ZKNaming(zooHost, zooPort);
+        connect();
+    }
+
+    private synchronized void connect() {
+        try {
+            this.zooKeeper = new ZooKeeper(this.zooHost + ":" + this.zooPort, SESSION_TIMEOUT, this);
+        } catch (IOException e) {
+            System.out.println("Could not watch replica membership: " + e.getMessage());
+            this.zooKeeper = null;
+        }
+        refresh(REPLICAS_PATH);
+        refresh(FOLLOWERS_PATH);
+    }
+
+    public List<ZKRecord> getReplicas() {
+        if (!this.watched.contains(REPLICAS_PATH))
+            refresh(REPLICAS_PATH);
+        return this.replicas;
+    }
+
+    public List<ZKRecord> getFollowers() {
+        if (!this.watched.contains(FOLLOWERS_PATH))
+            refresh(FOLLOWERS_PATH);
+        return this.followers;
+    }
+
+    //registered replica numbers, in order
+    public List<Integer> getReplicaNumbers() {
+        List<Integer> replicaNumbers = new ArrayList<>();
+        for (ZKRecord record : getReplicas()) {
+            String[] segments = record.getPath().split("/");
+            replicaNumbers.add(Integer.parseInt(segments[segments.length - 1]));
+        }
+        Collections.sort(replicaNumbers);
+        return replicaNumbers;
+    }
+
+    public ZKRecord lookup(String path) throws ZKNamingException {
+        for (ZKRecord record : getReplicas()) {
+            if (record.getPath().equals(path))
+                return record;
+        }
+        return this.zkNaming.lookup(path);
+    }
+
+    @Override
+    public void process(WatchedEvent event) {
+        if (event.getState() == Event.KeeperState.Expired) {
+            //watches are lost with the session
+            this.watched.clear();
+            close();
+            connect();
+            return;
+        }
+        if (event.getPath() != null)
+            refresh(event.getPath());
+    }
+
+    //re-arms the watch before listing, so no change in between is missed
+    private synchronized void refresh(String path) {
+        if (this.zooKeeper != null) {
+            try {
+                if (this.zooKeeper.exists(path, this) != null)
+                    this.zooKeeper.getChildren(path, this);
+                this.watched.add(path);
+            } catch (KeeperException e) {
+                //listed on every call until the watch is set again
+                System.out.println("Could not watch " + path + ": " + e.getMessage());
+                this.watched.remove(path);
+            } catch (InterruptedException e) {
+                this.watched.remove(path);
+                Thread.currentThread().interrupt();
+            }
+        }
+
+        List<ZKRecord> records;
+        try {
+            records = List.copyOf(this.zkNaming.listRecords(path));
+        } catch (ZKNamingException e) {
+            //nothing registered under the path yet
+            records = List.of();
+        }
+
+        if (path.equals(REPLICAS_PATH))
+            this.replicas = records;
+        else if (path.equals(FOLLOWERS_PATH))
+            this.followers = records;
+    }
+
+    @Override
+    public synchronized void close() {
+        try {
+            if (this.zooKeeper != null)
+                this.zooKeeper.close();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+}
@@ -0,0 +1,172 @@
+package pt.tecnico.sauron.silo.client;
+
+import io.grpc.*;
+import pt.tecnico.sauron.silo.grpc.ClientResponse;
+import pt.tecnico.sauron.silo.grpc.EmptyRequest;
+import pt.tecnico.sauron.silo.grpc.SiloOperationsServiceGrpc;
+import pt.tecnico.sauron.silo.grpc.TimestampResponse;
+import pt.ulisboa.tecnico.sdis.zk.ZKRecord;
+
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+//scores replicas by latency, load and how far they lag behind the client
+//latency is an exponentially weighted moving average of the calls made through tracked channels
+//replicas are picked by power of two choices, the best scored of two random candidates
+public class ReplicaSelector implements AutoCloseable {
+
+    private static final double ALPHA = 0.3;
+    //cost of each update the replica is missing, in milliseconds
+    private static final double STALE_PENALTY_MILLIS = 50;
+    //a replica that failed is avoided for this long
+    private static final long DOWN_NANOS = TimeUnit.SECONDS.toNanos(10);
+    private static final long PROBE_DEADLINE_MILLIS = 1000;
+
+    private static class Stats {
+        private double latencyMillis = 0;
+        private boolean sampled = false;
+        private long downSince = 0;
+        private boolean down = false;
+        private final AtomicInteger inFlight = new AtomicInteger();
+        private final Map<Integer, Integer> timestamp = new HashMap<>();
+
+        synchronized void record(long nanos) {
+            double millis = nanos / 1_000_000.0;
+            this.latencyMillis = this.sampled ? ALPHA * millis + (1 - ALPHA) * this.latencyMillis : millis;
+            this.sampled = true;
+            this.down = false;
+        }
+
+        synchronized void markDown() {
+            this.down = true;
+            this.downSince = System.nanoTime();
+        }
+
+        synchronized void mergeTimestamp(Map<Integer, Integer> timestamp) {
+            for (Map.Entry<Integer, Integer> entry : timestamp.entrySet())
+                this.timestamp.merge(entry.getKey(), entry.getValue(), Integer::max);
+        }
+
+        synchronized double score(Map<Integer, Integer> prevTS) {
+            if (this.down && System.nanoTime() - this.downSince < DOWN_NANOS)
+                return Double.MAX_VALUE;
+
+            int lag = 0;
+            for (Map.Entry<Integer, Integer> entry : prevTS.entrySet())
+                lag += Math.max(0, entry.getValue() - this.timestamp.getOrDefault(entry.getKey(), 0));
+
+            return this.latencyMillis * (1 + this.inFlight.get()) + STALE_PENALTY_MILLIS * lag;
+        }
+    }
+
+    private final Map<String, Stats> stats = new ConcurrentHashMap<>();
+    //channels used only to probe replicas the client is not connected to
+    private final Map<String, ManagedChannel> probeChannels = new ConcurrentHashMap<>();
+
+    private Stats stats(String path) {
+        return this.stats.computeIfAbsent(path, p -> new Stats());
+    }
+
+    //replicas never measured score zero, so they get tried
+    public double score(String path, Map<Integer, Integer> prevTS) {
+        return stats(path).score(prevTS);
+    }
+
+    public String choose(List<String> paths, Map<Integer, Integer> prevTS) {
+        if (paths.size() == 1)
+            return paths.get(0);
+
+        int i = ThreadLocalRandom.current().nextInt(paths.size());
+        int j = ThreadLocalRandom.current().nextInt(paths.size() - 1);
+        if (j >= i) j++;
+
+        String first = paths.get(i);
+        String second = paths.get(j);
+        return score(first, prevTS) <= score(second, prevTS) ? first : second;
+    }
+
+    public String best(List<String> paths, Map<Integer, Integer> prevTS) {
+        String best = null;
+        double bestScore = Double.MAX_VALUE;
+        for (String path : paths) {
+            double score = score(path, prevTS);
+            if (best == null || score < bestScore) {
+                best = path;
+                bestScore = score;
+            }
+        }
+        return best;
+    }
+
+    //measures every call made on the channel built with it
+    public ClientInterceptor track(String path) {
+        Stats stats = stats(path);
+        return new ClientInterceptor() {
+            @Override
+            public <ReqT, RespT> ClientCall<ReqT, RespT> interceptCall(MethodDescriptor<ReqT, RespT> method, CallOptions callOptions, Channel next) {
+                return new ForwardingClientCall.SimpleForwardingClientCall<>(next.newCall(method, callOptions)) {
+                    @Override
+                    public void start(Listener<RespT> responseListener, Metadata headers) {
+                        long start = System.nanoTime();
+                        stats.inFlight.incrementAndGet();
+                        super.start(new ForwardingClientCallListener.SimpleForwardingClientCallListener<>(responseListener) {
+                            @Override
+                            public void onMessage(RespT message) {
+                                if (message instanceof ClientResponse)
+                                    stats.mergeTimestamp(((ClientResponse) message).getResponseTSMap());
+                                else if (message instanceof TimestampResponse)
+                                    stats.mergeTimestamp(((TimestampResponse) message).getResponseTSMap());
+                                super.onMessage(message);
+                            }
+
+                            @Override
+                            public void onClose(Status status, Metadata trailers) {
+                                stats.inFlight.decrementAndGet();
+                                if (status.getCode() == Status.Code.UNAVAILABLE || status.getCode() == Status.Code.DEADLINE_EXCEEDED)
+                                    stats.markDown();
+                                else
+                                    stats.record(System.nanoTime() - start);
+                                super.onClose(status, trailers);
+                            }
+                        }, headers);
+                    }
+                };
+            }
+        };
+    }
+
+    //asks every replica for its timestamp, refreshing latency and lag of the ones not in use
+    public void probe(List<ZKRecord> replicas) {
+        Set<String> uris = new HashSet<>();
+        for (ZKRecord record : replicas) {
+            uris.add(record.getURI());
+            ManagedChannel channel = this.probeChannels.computeIfAbsent(record.getURI(), uri ->
+                    ManagedChannelBuilder.forTarget(uri).usePlaintext().intercept(track(record.getPath())).build());
+            try {
+                SiloOperationsServiceGrpc.newBlockingStub(channel)
+                        .withDeadlineAfter(PROBE_DEADLINE_MILLIS, TimeUnit.MILLISECONDS)
+                        .timestamp(EmptyRequest.newBuilder().build());
+            } catch (StatusRuntimeException e) {
+                //recorded by the interceptor
+            }
+        }
+
+        //replicas that left
+        this.probeChannels.entrySet().removeIf(entry -> {
+            if (uris.contains(entry.getKey()))
+                return false;
+            entry.getValue().shutdown();
+            return true;
+        });
+    }
+
+    @Override
+    public void close() {
+        for (ManagedChannel channel : this.probeChannels.values())
+            channel.shutdown();
+        this.probeChannels.clear();
+    }
+}
@@ -0,0 +1,177 @@
+package pt.tecnico.sauron.silo.client;
+
+import pt.tecnico.sauron.silo.grpc.UpdateResponse;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.*;
+
+//gathers observations per camera and reports them together
+//a batch is sent once it holds maxBatchSize observations or its first observation is lingerMillis old
+//at most maxInFlight reports are outstanding, adding to a full batch waits for one of them to finish
+//lingering batches never wait, they queue and take the permit of the next report that finishes
+public class ReportBatcher implements AutoCloseable {
+
+    public static final int DEFAULT_MAX_BATCH = 100;
+    public static final long DEFAULT_LINGER_MILLIS = 50;
+    public static final int DEFAULT_MAX_IN_FLIGHT = 8;
+
+    private static class Batch {
+        final List<List<String>> observations = new ArrayList<>();
+        final CompletableFuture<UpdateResponse> result = new CompletableFuture<>();
+        ScheduledFuture<?> linger;
+    }
+
+    private final SiloAsyncFrontend frontend;
+    private final int maxBatchSize;
+    private final long lingerMillis;
+    private final int maxInFlight;
+
+    //open batch of each camera
+    private final Map<String, Batch> batches = new HashMap<>();
+    private final Semaphore inFlight;
+    //lingered batches waiting for a permit, guarded by itself
+    private final Deque<Map.Entry<String, Batch>> waiting = new ArrayDeque<>();
+    private final ScheduledExecutorService scheduler = Executors.newSingleThreadScheduledExecutor(runnable -> {
+        Thread thread = new Thread(runnable, "silo-report-batcher");
+        thread.setDaemon(true);
+        return thread;
+    });
+    private volatile boolean closed = false;
+
+    public ReportBatcher(SiloAsyncFrontend frontend) {
+        this(frontend, DEFAULT_MAX_BATCH, DEFAULT_LINGER_MILLIS, DEFAULT_MAX_IN_FLIGHT);
+    }
+
+    public ReportBatcher(SiloAsyncFrontend frontend, int maxBatchSize, long lingerMillis, int maxInFlight) {
+        this.frontend = frontend;
+        this.maxBatchSize = maxBatchSize;
+        this.lingerMillis = lingerMillis;
+        this.maxInFlight = maxInFlight;
+        this.inFlight = new Semaphore(maxInFlight);
+    }
+
+    //completes when the report carrying this observation is saved
+    public CompletableFuture<UpdateResponse> add(String camName, String type, String id, String datetime) {
+        if (this.closed)
+            throw new IllegalStateException("Report batcher is closed");
+
+        Batch full = null;
+        CompletableFuture<UpdateResponse> result;
+        synchronized (this) {
+            Batch batch = this.batches.get(camName);
+            if (batch == null) {
+                Batch created = new Batch();
+                this.batches.put(camName, created);
+                created.linger = this.scheduler.schedule(() -> linger(camName, created), this.lingerMillis, TimeUnit.MILLISECONDS);
+                batch = created;
+            }
+            batch.observations.add(List.of(type, id, datetime));
+            result = batch.result;
+
+            if (batch.observations.size() >= this.maxBatchSize) {
+                this.batches.remove(camName);
+                batch.linger.cancel(false);
+                full = batch;
+            }
+        }
+
+        if (full != null)
+            send(camName, full);
+        return result;
+    }
+
+    //sends whatever the camera has gathered so far
+    public void flush(String camName) {
+        Batch batch;
+        synchronized (this) {
+            batch = this.batches.remove(camName);
+        }
+        if (batch != null) {
+            batch.linger.cancel(false);
+            send(camName, batch);
+        }
+    }
+
+    //the batch may already have been sent for being full
+    private void linger(String camName, Batch batch) {
+        boolean open;
+        synchronized (this) {
+            open = this.batches.remove(camName, batch);
+        }
+        if (open)
+            sendLater(camName, batch);
+    }
+
+    public void flush() {
+        List<String> camNames;
+        synchronized (this) {
+            camNames = new ArrayList<>(this.batches.keySet());
+        }
+        for (String camName : camNames)
+            flush(camName);
+    }
+
+    private void send(String camName, Batch batch) {
+        try {
+            this.inFlight.acquire();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            batch.result.completeExceptionally(e);
+            return;
+        }
+        report(camName, batch);
+    }
+
+    //runs on the single scheduler thread, which must keep serving every other camera's linger
+    private void sendLater(String camName, Batch batch) {
+        synchronized (this.waiting) {
+            if (!this.inFlight.tryAcquire()) {
+                this.waiting.add(Map.entry(camName, batch));
+                return;
+            }
+        }
+        report(camName, batch);
+    }
+
+    //holds a permit, handed to the next waiting batch when the report finishes
+    private void report(String camName, Batch batch) {
+        this.frontend.reportObs(camName, batch.observations).whenComplete((response, t) -> {
+            Map.Entry<String, Batch> next;
+            synchronized (this.waiting) {
+                next = this.waiting.poll();
+                if (next == null)
+                    this.inFlight.release();
+            }
+            if (next != null)
+                report(next.getKey(), next.getValue());
+
+            if (t != null)
+                batch.result.completeExceptionally(t);
+            else
+                batch.result.complete(response);
+        });
+    }
+
+    //number of observations waiting for their batch to be sent
+    public synchronized int getPending() {
+        int pending = 0;
+        for (Batch batch : this.batches.values())
+            pending += batch.observations.size();
+        return pending;
+    }
+
+    //sends every open batch and waits for the reports in flight, the frontend is left open
+    @Override
+    public void close() {
+        this.closed = true;
+        flush();
+        this.inFlight.acquireUninterruptibly(this.maxInFlight);
+        this.inFlight.release(this.maxInFlight);
+        this.scheduler.shutdown();
+    }
+}
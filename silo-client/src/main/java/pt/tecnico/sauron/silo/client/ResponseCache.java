@@ -2,42 +2,190 @@ package pt.tecnico.sauron.silo.client;
 
 import pt.tecnico.sauron.silo.grpc.ClientResponse;
 
-import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
 
+//last fresh response of each query, keyed by function name and arguments
+//bounded by number of entries and by the total size of the responses, entries may also expire
 public class ResponseCache {
 
-    private int limit = 20;
+    public static final int DEFAULT_MAX_ENTRIES = 1000;
+    public static final long DEFAULT_MAX_WEIGHT = 4 * 1024 * 1024;
 
-    private LinkedHashMap<List<String>, ClientResponse> cacheMap = new LinkedHashMap<>() {
-        @Override
-        protected boolean removeEldestEntry(final Map.Entry eldest) {
-            return size() > limit;
+    private static class Entry {
+        final ClientResponse response;
+        final Map<Integer, Integer> timestamp;
+        final int weight;
+        final long storedAt;
+        //second chance on eviction for entries read since the last pass
+        volatile boolean accessed = false;
+
+        Entry(ClientResponse response) {
+            this.response = response;
+            this.timestamp = response.getResponseTSMap();
+            this.weight = response.getSerializedSize();
+            this.storedAt = System.nanoTime();
         }
-    };
+    }
+
+    private final ConcurrentHashMap<List<String>, Entry> cacheMap = new ConcurrentHashMap<>();
+    //keys in insertion order, walked by the eviction clock
+    private final Queue<List<String>> evictionQueue = new ConcurrentLinkedQueue<>();
+
+    private final int maxEntries;
+    private final long maxWeight;
+    private final long ttlNanos;
+    private final AtomicLong weight = new AtomicLong();
+
+    //stale answers replaced by a cached response, and stale answers with nothing cached to replace them
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
 
     public ResponseCache() {
+        this(DEFAULT_MAX_ENTRIES);
     }
 
     public ResponseCache(int limit) {
-        this.limit = limit;
+        this(limit, DEFAULT_MAX_WEIGHT, 0);
     }
 
+    //ttl of zero keeps entries until they are evicted
+    public ResponseCache(int maxEntries, long maxWeight, long ttlMillis) {
+        this.maxEntries = maxEntries;
+        this.maxWeight = maxWeight;
+        this.ttlNanos = TimeUnit.MILLISECONDS.toNanos(ttlMillis);
+    }
+
+    //an older response never replaces one that reflects more updates
+    //compared and replaced in one step, so two queries answering at once cannot let the older one win
     public void addEntry(List<String> list, ClientResponse response) {
-        this.cacheMap.put(list, response);
+        List<String> key = List.copyOf(list);
+        Entry entry = new Entry(response);
+        boolean[] added = {false};
+
+        this.cacheMap.compute(key, (k, previous) -> {
+            if (previous != null && !isExpired(previous) && isNewer(previous.timestamp, entry.timestamp))
+                return previous;
+            this.weight.addAndGet(entry.weight - (previous != null ? previous.weight : 0));
+            added[0] = previous == null;
+            return entry;
+        });
+
+        if (added[0])
+            this.evictionQueue.add(key);
+        evict();
     }
 
+    //cached response of the query, looked up once before it is sent
+    public ClientResponse get(List<String> list) {
+        Entry entry = lookup(list);
+        return entry != null ? entry.response : null;
+    }
 
     // get last read response because request was not updated
-    public ClientResponse getLastRead(List<String> list) {
+    public ClientResponse serveStale(ClientResponse cached) {
+        System.out.println("Response outdated.\nRetrieving last stable entry from cache...");
+        this.hits.increment();
+        return cached;
+    }
+
+    //a stale answer arrived with nothing cached, the replica had to answer with what it has
+    public void missStale() {
+        this.misses.increment();
+    }
+
+    //vector timestamp the cached response reflects
+    public Map<Integer, Integer> getTimestamp(List<String> list) {
+        Entry entry = lookup(list);
+        return entry != null ? entry.timestamp : null;
+    }
 
-        for (List<String> key : this.cacheMap.keySet()) {
-            if (list.equals(key)) {
-                System.out.println("Response outdated.\nRetrieving last stable entry from cache...");
-                return this.cacheMap.get(key);
+    private Entry lookup(List<String> list) {
+        Entry entry = this.cacheMap.get(list);
+        if (entry == null)
+            return null;
+        if (isExpired(entry)) {
+            remove(list, entry);
+            return null;
+        }
+        entry.accessed = true;
+        return entry;
+    }
+
+    private boolean isExpired(Entry entry) {
+        return this.ttlNanos > 0 && System.nanoTime() - entry.storedAt > this.ttlNanos;
+    }
+
+    private void remove(List<String> key, Entry entry) {
+        if (this.cacheMap.remove(key, entry))
+            this.weight.addAndGet(-entry.weight);
+    }
+
+    //clock eviction, entries read since the last pass go back to the end of the queue
+    private void evict() {
+        while (this.cacheMap.size() > this.maxEntries || this.weight.get() > this.maxWeight) {
+            List<String> key = this.evictionQueue.poll();
+            if (key == null)
+                return;
+
+            Entry entry = this.cacheMap.get(key);
+            if (entry == null)
+                continue;
+            if (entry.accessed && !isExpired(entry)) {
+                entry.accessed = false;
+                this.evictionQueue.add(key);
+                continue;
             }
+            if (this.cacheMap.remove(key, entry))
+                this.weight.addAndGet(-entry.weight);
+            else
+                this.evictionQueue.add(key);
         }
-        return null;
+    }
+
+    //a is ahead of b in at least one replica and behind in none
+    private static boolean isNewer(Map<Integer, Integer> a, Map<Integer, Integer> b) {
+        boolean ahead = false;
+        for (Map.Entry<Integer, Integer> entry : b.entrySet()) {
+            if (a.getOrDefault(entry.getKey(), 0) < entry.getValue())
+                return false;
+        }
+        for (Map.Entry<Integer, Integer> entry : a.entrySet()) {
+            if (entry.getValue() > b.getOrDefault(entry.getKey(), 0))
+                ahead = true;
+        }
+        return ahead;
+    }
+
+    public long getHits() {
+        return this.hits.sum();
+    }
+
+    public long getMisses() {
+        return this.misses.sum();
+    }
+
+    public int size() {
+        return this.cacheMap.size();
+    }
+
+    public long getWeight() {
+        return this.weight.get();
+    }
+
+    @Override
+    public String toString() {
+        return "ResponseCache{" +
+                "entries=" + size() +
+                ", weight=" + getWeight() +
+                ", hits=" + getHits() +
+                ", misses=" + getMisses() +
+                '}';
     }
 }
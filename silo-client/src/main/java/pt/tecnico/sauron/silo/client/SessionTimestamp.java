@@ -0,0 +1,41 @@
+package pt.tecnico.sauron.silo.client;
+
+import java.util.HashMap;
+import java.util.Map;
+
+//vector timestamp of what a client session has seen, shared by every request it has in flight
+public class SessionTimestamp {
+
+    private final Map<Integer, Integer> timestamp = new HashMap<>();
+
+    public SessionTimestamp() {
+    }
+
+    public SessionTimestamp(Map<Integer, Integer> timestamp) {
+        this.timestamp.putAll(timestamp);
+    }
+
+    //copy to send along with a request
+    public synchronized Map<Integer, Integer> get() {
+        return new HashMap<>(this.timestamp);
+    }
+
+    public synchronized void set(Map<Integer, Integer> timestamp) {
+        this.timestamp.clear();
+        this.timestamp.putAll(timestamp);
+    }
+
+    public synchronized void merge(Map<Integer, Integer> timestamp) {
+        for (Map.Entry<Integer, Integer> entry : timestamp.entrySet())
+            this.timestamp.merge(entry.getKey(), entry.getValue(), Integer::max);
+    }
+
+    //the given timestamp includes everything the session has seen
+    public synchronized boolean isCoveredBy(Map<Integer, Integer> timestamp) {
+        for (Map.Entry<Integer, Integer> entry : this.timestamp.entrySet()) {
+            if (entry.getValue() > timestamp.getOrDefault(entry.getKey(), 0))
+                return false;
+        }
+        return true;
+    }
+}
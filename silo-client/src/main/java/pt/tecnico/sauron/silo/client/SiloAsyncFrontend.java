@@ -0,0 +1,246 @@
+package pt.tecnico.sauron.silo.client;
+
+import com.google.common.util.concurrent.FutureCallback;
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.MoreExecutors;
+import io.grpc.ManagedChannel;
+import io.grpc.ManagedChannelBuilder;
+import io.grpc.stub.ClientCallStreamObserver;
+import io.grpc.stub.ClientResponseObserver;
+import io.grpc.stub.StreamObserver;
+import pt.tecnico.sauron.silo.client.Exceptions.NoServersAvailableException;
+import pt.tecnico.sauron.silo.client.requests.*;
+import pt.tecnico.sauron.silo.grpc.*;
+import pt.ulisboa.tecnico.sdis.zk.ZKRecord;
+
+import java.util.*;
+import java.util.concurrent.CompletableFuture;
+
+//non-blocking frontend, any number of requests can be in flight over a single channel
+//timestamps and cached responses follow the same rules as SiloFrontend
+public class SiloAsyncFrontend implements AutoCloseable {
+
+    private final ReplicaDirectory directory;
+    private final SessionTimestamp prevTS;
+    private final ResponseCache responseCache = new ResponseCache();
+
+    private volatile ManagedChannel channel;
+    private volatile String target;
+    private volatile SiloOperationsServiceGrpc.SiloOperationsServiceFutureStub stub;
+
+    public SiloAsyncFrontend(String zooHost, String zooPort, String repN) throws NoServersAvailableException {
+        this(zooHost, zooPort, repN, new SessionTimestamp());
+    }
+
+    public SiloAsyncFrontend(String zooHost, String zooPort, String repN, SessionTimestamp prevTS) throws NoServersAvailableException {
+        this.directory = new ReplicaDirectory(zooHost, zooPort);
+        this.prevTS = prevTS;
+        connect(repN);
+    }
+
+    //connects to the given replica, or to a random one when repN is empty
+    private synchronized void connect(String repN) throws NoServersAvailableException {
+        List<ZKRecord> replicas = this.directory.getReplicas();
+        ZKRecord record = null;
+
+        if (repN.equals("")) {
+            if (!replicas.isEmpty())
+                record = replicas.get(new Random().nextInt(replicas.size()));
+        } else {
+            for (ZKRecord r : replicas) {
+                if (r.getPath().equals(ReplicaDirectory.REPLICAS_PATH + "/" + repN))
+                    record = r;
+            }
+        }
+        if (record == null)
+            throw new NoServersAvailableException();
+
+        if (this.channel != null)
+            this.channel.shutdown();
+        this.target = record.getURI();
+        this.channel = ManagedChannelBuilder.forTarget(this.target).usePlaintext().build();
+        this.stub = SiloOperationsServiceGrpc.newFutureStub(this.channel);
+    }
+
+    //moves to a random replica, requests in flight on the old channel are left to finish
+    public void renewConnection() throws NoServersAvailableException {
+        connect("");
+    }
+
+    public CompletableFuture<UpdateResponse> camJoin(String camName, double latitude, double longitude) {
+        CamJoin request = new CamJoin();
+        request.buildRequest(camName, latitude, longitude, this.prevTS.get(), getUUID());
+        return runUpdate(request).thenApply(ClientResponse::getUpdateResponse);
+    }
+
+    public CompletableFuture<CamInfoResponse> getCamInfo(String camName) {
+        CamInfo request = new CamInfo(List.of("CamInfo", camName));
+        request.buildRequest(camName, this.prevTS.get(), getUUID());
+        return runQuery(request).thenApply(ClientResponse::getCamInfoResponse);
+    }
+
+    public CompletableFuture<UpdateResponse> reportObs(String camName, List<List<String>> observations) {
+        Report request = new Report();
+        request.buildRequest(camName, observations, this.prevTS.get(), getUUID());
+        return runUpdate(request).thenApply(ClientResponse::getUpdateResponse);
+    }
+
+    //report already holding its observations, stamped with the session timestamp and a fresh id
+    public ClientRequest buildReport(ReportRequest report) {
+        return ClientRequest.newBuilder()
+                .setReportRequest(report)
+                .putAllPrevTS(this.prevTS.get())
+                .setOpId(getUUID()).build();
+    }
+
+    //sends a report built with buildReport, keeping its id
+    public CompletableFuture<UpdateResponse> sendReport(ClientRequest clientRequest) {
+        Report request = new Report();
+        request.setRequest(clientRequest);
+        return runUpdate(request).thenApply(ClientResponse::getUpdateResponse);
+    }
+
+    //client-streaming reports built with buildReport, the single answer is merged into the session timestamp
+    //a ClientResponseObserver is handed the request stream before it starts, to follow its readiness
+    public StreamObserver<ClientRequest> reportStream(StreamObserver<ClientResponse> responseObserver) {
+        return SiloOperationsServiceGrpc.newStub(this.channel).reportStream(new ClientResponseObserver<ClientRequest, ClientResponse>() {
+            @Override
+            @SuppressWarnings("unchecked")
+            public void beforeStart(ClientCallStreamObserver<ClientRequest> requestStream) {
+                if (responseObserver instanceof ClientResponseObserver)
+                    ((ClientResponseObserver<ClientRequest, ClientResponse>) responseObserver).beforeStart(requestStream);
+            }
+
+            @Override
+            public void onNext(ClientResponse response) {
+                prevTS.merge(response.getResponseTSMap());
+                responseObserver.onNext(response);
+            }
+
+            @Override
+            public void onError(Throwable t) {
+                responseObserver.onError(t);
+            }
+
+            @Override
+            public void onCompleted() {
+                responseObserver.onCompleted();
+            }
+        });
+    }
+
+    public CompletableFuture<TrackResponse> trackObj(String type, String id) {
+        Track request = new Track(List.of("TrackObject", type, id));
+        request.buildRequest(type, id, this.prevTS.get(), getUUID());
+        return runQuery(request).thenApply(ClientResponse::getTrackResponse);
+    }
+
+    public CompletableFuture<TraceResponse> trackMatchObj(String type, String id) {
+        TrackMatch request = new TrackMatch(List.of("TrackMatchObject", type, id));
+        request.buildRequest(type, id, this.prevTS.get(), getUUID());
+        return runQuery(request).thenApply(ClientResponse::getTraceResponse);
+    }
+
+    public CompletableFuture<TraceResponse> traceObj(String type, String id) {
+        Trace request = new Trace(List.of("TraceObject", type, id));
+        request.buildRequest(type, id, this.prevTS.get(), getUUID());
+        return runQuery(request).thenApply(ClientResponse::getTraceResponse);
+    }
+
+    public CompletableFuture<PingResponse> ctrlPing() {
+        Ping request = new Ping(List.of("Ping"));
+        request.buildRequest(this.prevTS.get(), getUUID());
+        return runUpdate(request).thenApply(ClientResponse::getPingResponse);
+    }
+
+    public CompletableFuture<UpdateResponse> ctrlClear() {
+        Clear request = new Clear();
+        request.buildRequest(this.prevTS.get(), getUUID());
+        return runUpdate(request).thenApply(ClientResponse::getUpdateResponse);
+    }
+
+    public CompletableFuture<UpdateResponse> ctrlInit() {
+        Init request = new Init();
+        request.buildRequest(this.prevTS.get(), getUUID());
+        return runUpdate(request).thenApply(ClientResponse::getUpdateResponse);
+    }
+
+    private CompletableFuture<ClientResponse> runUpdate(Request request) {
+        return toCompletable(request.runAsyncRequest(this.stub)).thenApply(response -> {
+            //Merge Timestamps
+            this.prevTS.merge(response.getResponseTSMap());
+            return response;
+        });
+    }
+
+    //a replica behind the session answers stale and the cached response is used instead
+    //the cached response is taken before sending, so it cannot be evicted before the answer arrives
+    private CompletableFuture<ClientResponse> runQuery(Request request) {
+        List<String> serviceDesc = request.getFunctionAndArgs();
+        ClientResponse cached = this.responseCache.get(serviceDesc);
+        request.allowStale(cached == null);
+
+        return toCompletable(request.runAsyncRequest(this.stub)).thenApply(answer -> {
+            ClientResponse response = answer;
+            if (response.getStale()) {
+                if (cached != null)
+                    return this.responseCache.serveStale(cached);
+                //answered with its result because stale data was allowed
+                this.responseCache.missStale();
+                response = response.toBuilder().setStale(false).build();
+            } else
+                this.responseCache.addEntry(serviceDesc, response);
+
+            //Merge Timestamps
+            this.prevTS.merge(response.getResponseTSMap());
+            return response;
+        });
+    }
+
+    //completes on the gRPC thread that delivered the response
+    private static <T> CompletableFuture<T> toCompletable(ListenableFuture<T> future) {
+        CompletableFuture<T> result = new CompletableFuture<>() {
+            @Override
+            public boolean cancel(boolean mayInterruptIfRunning) {
+                future.cancel(mayInterruptIfRunning);
+                return super.cancel(mayInterruptIfRunning);
+            }
+        };
+        Futures.addCallback(future, new FutureCallback<>() {
+            @Override
+            public void onSuccess(T value) {
+                result.complete(value);
+            }
+
+            @Override
+            public void onFailure(Throwable t) {
+                result.completeExceptionally(t);
+            }
+        }, MoreExecutors.directExecutor());
+        return result;
+    }
+
+    private String getUUID() {
+        return UUID.randomUUID().toString();
+    }
+
+    //hit, miss and stale-serve counters of the query cache
+    public ResponseCache getResponseCache() {
+        return responseCache;
+    }
+
+    public SessionTimestamp getPrevTS() {
+        return prevTS;
+    }
+
+    public String getTarget() {
+        return target;
+    }
+
+    @Override
+    public void close() {
+        this.channel.shutdown();
+        this.directory.close();
+    }
+}
@@ -1,44 +1,92 @@
 package pt.tecnico.sauron.silo.client;
 
+import com.google.common.collect.Iterators;
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.MoreExecutors;
+import io.grpc.ConnectivityState;
 import io.grpc.ManagedChannel;
 import io.grpc.ManagedChannelBuilder;
+import io.grpc.Status;
 import io.grpc.StatusRuntimeException;
 import pt.tecnico.sauron.silo.client.Exceptions.NoServersAvailableException;
 import pt.tecnico.sauron.silo.client.requests.*;
 import pt.tecnico.sauron.silo.grpc.*;
-import pt.ulisboa.tecnico.sdis.zk.ZKNaming;
 import pt.ulisboa.tecnico.sdis.zk.ZKNamingException;
 import pt.ulisboa.tecnico.sdis.zk.ZKRecord;
 
 import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
 
 
+//safe to share between threads, every call goes through the same multiplexed channel
 public class SiloFrontend implements AutoCloseable {
 
+    private static final long REBALANCE_PERIOD_SECONDS = 5;
+    //a replica must score this much better before the frontend moves to it
+    private static final double REBALANCE_MARGIN = 0.3;
+
+    //a hedged query waits this percentile of recent query latencies before asking a second replica
+    private static final double HEDGE_PERCENTILE = 0.95;
+    private static final long MIN_HEDGE_DELAY_MILLIS = 5;
+    private static final long DEFAULT_HEDGE_DELAY_MILLIS = 50;
+
+    //keepalive pings notice a dead replica even while no call is running
+    private static final long KEEPALIVE_SECONDS = 10;
+    private static final long KEEPALIVE_TIMEOUT_SECONDS = 2;
+    //failover gives up after trying every replica this many times
+    private static final int MAX_FAILOVER_ROUNDS = 6;
+    private static final long BACKOFF_BASE_MILLIS = 50;
+    private static final long BACKOFF_MAX_MILLIS = 5000;
+
+    //reconnections happen one at a time, the replica selection state is only touched under this lock
+    private final Object reconnectLock = new Object();
     private String currentPath;
     private List<String> attempts = new ArrayList<>();
     private Integer previousAvailableServers = -1;
+
     private ResponseCache responseCache = new ResponseCache();
-    private Request previousRequest;
-    private ManagedChannel channel;
+    //each thread re-runs its own last request after a reconnection
+    private final ThreadLocal<Request> previousRequest = new ThreadLocal<>();
+    private volatile ManagedChannel channel;
     private String host;
     private String port;
-    private Map<Integer, Integer> prevTS = new HashMap<>();
-    private String target;
-    private String repN;
+    private SessionTimestamp prevTS = new SessionTimestamp();
+    private volatile String target;
+    private volatile String repN;
     private boolean isStatic = false;
+    private ReplicaDirectory directory;
+    private final ReplicaSelector selector = new ReplicaSelector();
+    private ScheduledExecutorService scheduler;
+
+    //connected ahead of time to a second replica, which takes over when the current one fails
+    private volatile ManagedChannel standbyChannel;
+    private volatile String standbyPath;
+    private volatile String standbyTarget;
+
+    private volatile SiloOperationsServiceGrpc.SiloOperationsServiceBlockingStub stub;
 
-    private SiloOperationsServiceGrpc.SiloOperationsServiceBlockingStub stub;
+    //queries go to a read-only follower when there is one, updates always go to a replica
+    private volatile ManagedChannel queryChannel;
+    private volatile String queryTarget;
+    private volatile SiloOperationsServiceGrpc.SiloOperationsServiceBlockingStub queryStub;
+
+    private volatile boolean hedging = false;
+    private final LatencyWindow queryLatency = new LatencyWindow(256);
+    //channels to the replicas hedged queries are sent to, by uri
+    private final Map<String, ManagedChannel> hedgeChannels = new ConcurrentHashMap<>();
 
     public SiloFrontend(String zooHost, String zooPort, String repN) throws ZKNamingException, NoServersAvailableException {
 
         this.host = zooHost;
         this.port = zooPort;
+        this.directory = new ReplicaDirectory(zooHost, zooPort);
         this.target = getServerTarget(zooHost, zooPort, repN);
 
         if (!repN.equals("")) this.isStatic = true;
 
-        this.channel = ManagedChannelBuilder.forTarget(this.target).usePlaintext().build();
+        this.channel = buildChannel(this.currentPath, this.target);
 
         // Create a blocking stub.
         this.stub = SiloOperationsServiceGrpc.newBlockingStub(channel);
@@ -49,18 +97,21 @@ public class SiloFrontend implements AutoCloseable {
         } catch (StatusRuntimeException e) {
             renewConnection();
         }
+        connectQueryReplica();
+        startBackgroundTasks();
     }
 
     public SiloFrontend(String zooHost, String zooPort, String repN, Map<Integer, Integer> preTS) throws ZKNamingException, NoServersAvailableException {
 
         this.host = zooHost;
         this.port = zooPort;
-        this.prevTS = preTS;
+        this.directory = new ReplicaDirectory(zooHost, zooPort);
+        this.prevTS = new SessionTimestamp(preTS);
         this.target = getServerTarget(zooHost, zooPort, repN);
 
         if (repN.equals("")) this.isStatic = true;
 
-        this.channel = ManagedChannelBuilder.forTarget(target).usePlaintext().build();
+        this.channel = buildChannel(this.currentPath, this.target);
 
         // Create a blocking stub.
         this.stub = SiloOperationsServiceGrpc.newBlockingStub(channel);
@@ -72,82 +123,471 @@ public class SiloFrontend implements AutoCloseable {
         } catch (StatusRuntimeException e) {
             renewConnection();
         }
+        connectQueryReplica();
+        startBackgroundTasks();
 
     }
 
-    //when a replica crashes, frontend reconnects to a random other replica
+    //when a replica crashes, frontend moves to the standby replica, or else to another one chosen by the selector
+    //threads failing together reconnect once, the others find the new replica answering
+    //attempts are spaced by a jittered exponential backoff and give up after MAX_FAILOVER_ROUNDS over every replica
     public void renewConnection() throws ZKNamingException, NoServersAvailableException {
-        System.err.println("Replica " + getRepN() + " at " + getTarget() + " is down");
-        System.out.println("Trying to reconnect to another replica");
-
-        while (true) {
+        synchronized (this.reconnectLock) {
             try {
-                this.channel.shutdownNow();
+                ctrlPing();//PING
+                //the replica is fine, the follower queries go to may not be
+                if (this.queryStub != this.stub && !isQueryReplicaUp())
+                    connectQueryReplica();
+                return;
+            } catch (StatusRuntimeException e) {
+                System.err.println("Replica " + getRepN() + " at " + getTarget() + " is down");
+                System.out.println("Trying to reconnect to another replica");
+            }
+
+            //calls still in flight on the old channel are left to finish
+            this.channel.shutdown();
+
+            if (promoteStandby()) {
+                System.out.println("Switched to standby replica " + this.repN + " at " + this.target);
+            } else {
+                Backoff backoff = new Backoff(BACKOFF_BASE_MILLIS, BACKOFF_MAX_MILLIS);
+                int rounds = 0;
+                while (true) {
+                    try {
+                        this.target = getServerTarget(this.host, this.port, "");
+
+                        this.channel = buildChannel(this.currentPath, this.target);
+
+                        // Create a blocking stub.
+                        this.stub = SiloOperationsServiceGrpc.newBlockingStub(channel);
+
+                        ctrlPing();//PING
+                        break;
+                    } catch (NoServersAvailableException e) {
+                        //every replica failed in this round
+                        if (this.isStatic || ++rounds >= MAX_FAILOVER_ROUNDS)
+                            throw e;
+                        this.attempts.clear();
+                        pause(backoff.nextDelayMillis());
+                    } catch (RuntimeException e) {
+                        System.err.println("Replica " + getRepN() + " at " + getTarget() + " is down");
+                        System.out.println("Trying to reconnect to another replica");
+                        this.channel.shutdownNow();
+                        pause(backoff.nextDelayMillis());
+                    }
+                }
+                System.out.println("Reconnected to replica " + this.repN + " at " + this.target);
+            }
+            connectQueryReplica();
+            connectStandby();
+            watchChannel(this.channel);
+        }
 
-                this.target = getServerTarget(this.host, this.port, "");
+    }
 
+    private void pause(long millis) throws NoServersAvailableException {
+        try {
+            Thread.sleep(millis);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new NoServersAvailableException();
+        }
+    }
 
-                this.channel = ManagedChannelBuilder.forTarget(this.target).usePlaintext().build();
+    //calls on the channel feed the latency and lag of the replica behind it
+    private ManagedChannel buildChannel(String path, String target) {
+        return ManagedChannelBuilder.forTarget(target).usePlaintext()
+                .keepAliveTime(KEEPALIVE_SECONDS, TimeUnit.SECONDS)
+                .keepAliveTimeout(KEEPALIVE_TIMEOUT_SECONDS, TimeUnit.SECONDS)
+                .keepAliveWithoutCalls(true)
+                .intercept(this.selector.track(path)).build();
+    }
 
-                // Create a blocking stub.
-                this.stub = SiloOperationsServiceGrpc.newBlockingStub(channel);
+    private void startBackgroundTasks() {
+        //a frontend bound to a given replica never moves
+        if (this.isStatic)
+            return;
 
-                ctrlPing();//PING
-                break;
-            } catch (RuntimeException e) {
-                System.err.println("Replica " + getRepN() + " at " + getTarget() + " is down");
-                System.out.println("Trying to reconnect to another replica");
+        this.scheduler = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "silo-frontend");
+            thread.setDaemon(true);
+            return thread;
+        });
+        this.scheduler.scheduleWithFixedDelay(this::rebalance, REBALANCE_PERIOD_SECONDS, REBALANCE_PERIOD_SECONDS, TimeUnit.SECONDS);
+
+        synchronized (this.reconnectLock) {
+            connectStandby();
+        }
+        watchChannel(this.channel);
+        watchQueryChannel(this.queryChannel);
+    }
+
+    //fails over as soon as the channel loses its connection, before a call has to fail
+    private void watchChannel(ManagedChannel channel) {
+        if (this.scheduler == null)
+            return;
+
+        ConnectivityState state = channel.getState(false);
+        channel.notifyWhenStateChanged(state, () -> {
+            //replaced in the meantime
+            if (channel != this.channel)
+                return;
+
+            ConnectivityState current = channel.getState(false);
+            if (current == ConnectivityState.TRANSIENT_FAILURE) {
+                this.scheduler.execute(() -> {
+                    try {
+                        renewConnection();
+                    } catch (ZKNamingException | NoServersAvailableException e) {
+                        System.err.println("Server could not be found or no servers available at the moment");
+                    }
+                    //the same channel came back, a new one is already watched by renewConnection
+                    if (channel == this.channel)
+                        watchChannel(channel);
+                });
+            } else if (current != ConnectivityState.SHUTDOWN)
+                watchChannel(channel);
+        });
+    }
+
+    //a follower that fails is replaced by another one, or by the replica
+    private void watchQueryChannel(ManagedChannel channel) {
+        if (this.scheduler == null || channel == this.channel)
+            return;
+
+        ConnectivityState state = channel.getState(false);
+        channel.notifyWhenStateChanged(state, () -> {
+            //replaced in the meantime
+            if (channel != this.queryChannel)
+                return;
+
+            ConnectivityState current = channel.getState(false);
+            if (current == ConnectivityState.TRANSIENT_FAILURE) {
+                this.scheduler.execute(() -> {
+                    synchronized (this.reconnectLock) {
+                        if (channel == this.queryChannel) {
+                            System.err.println("Follower at " + this.queryTarget + " is down");
+                            connectQueryReplica();
+                        }
+                    }
+                });
+            } else if (current != ConnectivityState.SHUTDOWN)
+                watchQueryChannel(channel);
+        });
+    }
+
+    //opens a channel to another replica and lets keepalive hold the connection
+    private void connectStandby() {
+        if (this.standbyChannel != null && !this.currentPath.equals(this.standbyPath))
+            return;
+        if (this.standbyChannel != null)
+            this.standbyChannel.shutdown();
+        this.standbyChannel = null;
+
+        List<String> paths = new ArrayList<>();
+        Map<String, String> uris = new HashMap<>();
+        for (ZKRecord record : this.directory.getReplicas()) {
+            if (!record.getPath().equals(this.currentPath)) {
+                paths.add(record.getPath());
+                uris.put(record.getPath(), record.getURI());
             }
         }
-        System.out.println("Reconnected to replica " + this.repN + " at " + this.target);
+        if (paths.isEmpty())
+            return;
+
+        String path = this.selector.choose(paths, this.prevTS.get());
+        this.standbyPath = path;
+        this.standbyTarget = uris.get(path);
+        this.standbyChannel = buildChannel(path, this.standbyTarget);
+        //connects now instead of on the first call
+        this.standbyChannel.getState(true);
+    }
 
+    private boolean promoteStandby() {
+        ManagedChannel standby = this.standbyChannel;
+        if (standby == null)
+            return false;
+        this.standbyChannel = null;
 
+        SiloOperationsServiceGrpc.SiloOperationsServiceBlockingStub stub = SiloOperationsServiceGrpc.newBlockingStub(standby);
+        try {
+            stub.withDeadlineAfter(1, TimeUnit.SECONDS).timestamp(EmptyRequest.newBuilder().build());
+        } catch (StatusRuntimeException e) {
+            standby.shutdownNow();
+            return false;
+        }
+        switchTo(this.standbyPath, this.standbyTarget, standby, stub);
+        return true;
     }
 
-    public ClientResponse runPreviousCommand() {
+    private void switchTo(String path, String target, ManagedChannel channel, SiloOperationsServiceGrpc.SiloOperationsServiceBlockingStub stub) {
+        this.channel = channel;
+        this.stub = stub;
+        this.target = target;
+        this.currentPath = path;
+        String[] segments = path.split("/");
+        this.repN = segments[segments.length - 1];
+        this.attempts.clear();
+        this.attempts.add(path);
+    }
 
-        //Run previous command
-        ClientResponse response;
+    //moves away from a slow, loaded or lagging replica without waiting for it to fail
+    private void rebalance() {
+        try {
+            List<ZKRecord> replicas = this.directory.getReplicas();
+            this.selector.probe(replicas);
+
+            List<String> paths = new ArrayList<>();
+            for (ZKRecord record : replicas)
+                paths.add(record.getPath());
+
+            synchronized (this.reconnectLock) {
+                Map<Integer, Integer> timestamp = this.prevTS.get();
+                String best = this.selector.best(paths, timestamp);
+                if (best == null || best.equals(this.currentPath))
+                    return;
+                if (this.selector.score(best, timestamp) >= (1 - REBALANCE_MARGIN) * this.selector.score(this.currentPath, timestamp))
+                    return;
+
+                ZKRecord record = this.directory.lookup(best);
+                ManagedChannel channel = buildChannel(best, record.getURI());
+                SiloOperationsServiceGrpc.SiloOperationsServiceBlockingStub stub = SiloOperationsServiceGrpc.newBlockingStub(channel);
+                try {
+                    stub.withDeadlineAfter(1, TimeUnit.SECONDS).timestamp(EmptyRequest.newBuilder().build());
+                } catch (StatusRuntimeException e) {
+                    channel.shutdownNow();
+                    return;
+                }
+
+                //calls still in flight on the old channel are left to finish
+                ManagedChannel previous = this.channel;
+                switchTo(best, record.getURI(), channel, stub);
+
+                if (this.queryChannel == previous)
+                    connectQueryReplica();
+                previous.shutdown();
+                connectStandby();
+                watchChannel(this.channel);
+                System.out.println("Moved to replica " + this.repN + " at " + this.target);
+            }
+        } catch (ZKNamingException | RuntimeException e) {
+            System.out.println("Could not rebalance: " + e.getMessage());
+        }
+    }
 
+    //picks a random follower for queries, falling back to the replica when none answers
+    private boolean isQueryReplicaUp() {
+        try {
+            this.queryStub.withDeadlineAfter(1, TimeUnit.SECONDS).timestamp(EmptyRequest.newBuilder().build());
+            return true;
+        } catch (StatusRuntimeException e) {
+            System.err.println("Follower at " + this.queryTarget + " is down");
+            return false;
+        }
+    }
 
-        //Send response in cache if received response is not updated
-        if (this.previousRequest.isQuery()) {
-            Map<Integer,Integer> responseTS = getResponseTimestamp();
+    private void connectQueryReplica() {
+        if (this.queryChannel != null && this.queryChannel != this.channel)
+            this.queryChannel.shutdown();
 
-            convertTimestamp(responseTS);
+        this.queryChannel = this.channel;
+        this.queryTarget = this.target;
+        this.queryStub = this.stub;
 
-            if (!happensBefore(responseTS)) {
-                //Send response in cache if received response is not updated
-                ClientResponse cacheResponse = this.responseCache.getLastRead(this.previousRequest.getFunctionAndArgs());
-                if (cacheResponse != null) return cacheResponse;
-            }
+        //a frontend bound to a given replica only talks to it
+        if (this.isStatic)
+            return;
+
+        List<ZKRecord> followers = new ArrayList<>(this.directory.getFollowers());
+        Collections.shuffle(followers);
 
-            response = this.previousRequest.runRequest(this.stub);
-            this.responseCache.addEntry(this.previousRequest.getFunctionAndArgs(), response);
+        for (ZKRecord follower : followers) {
+            ManagedChannel channel = buildChannel(follower.getPath(), follower.getURI());
+            SiloOperationsServiceGrpc.SiloOperationsServiceBlockingStub stub = SiloOperationsServiceGrpc.newBlockingStub(channel);
+            try {
+                //runs under reconnectLock, a follower that hangs must not hold it
+                stub.withDeadlineAfter(1, TimeUnit.SECONDS).timestamp(EmptyRequest.newBuilder().build());
+                this.queryChannel = channel;
+                this.queryTarget = follower.getURI();
+                this.queryStub = stub;
+                System.out.println("Queries sent to follower at " + this.queryTarget);
+                watchQueryChannel(channel);
+                return;
+            } catch (StatusRuntimeException e) {
+                channel.shutdownNow();
+            }
         }
-        else  {
-            response = this.previousRequest.runRequest(stub);
+    }
+
+    public ClientResponse runPreviousCommand() {
+
+        //Run previous command
+        ClientResponse response;
+        Request previousRequest = this.previousRequest.get();
+        if (previousRequest == null)
+            throw Status.FAILED_PRECONDITION.withDescription("No previous command to run again").asRuntimeException();
+
+        if (previousRequest.isQuery())
+            response = runQuery(previousRequest);
+        else {
+            response = previousRequest.runRequest(this.stub);
             convertTimestamp(response.getResponseTSMap());
+
+            //Merge Timestamps
+            mergeTS(response.getResponseTSMap());
+        }
+
+        synchronized (this.reconnectLock) {
+            this.attempts.clear();
+            this.attempts.add(this.currentPath);
         }
 
+        return response;
+
+    }
+
+    //queries carry prevTS, a replica behind the client answers stale and the cached response is used instead
+    //when nothing is cached the replica answers anyway, the cached response is taken before sending so it cannot go missing
+    private ClientResponse runQuery(Request request) {
+        List<String> serviceDesc = request.getFunctionAndArgs();
+        ClientResponse cached = this.responseCache.get(serviceDesc);
+        request.allowStale(cached == null);
+
+        long start = System.nanoTime();
+        ClientResponse response = this.hedging ? runHedged(request) : request.runRequest(this.queryStub);
+        this.queryLatency.record(System.nanoTime() - start);
+        convertTimestamp(response.getResponseTSMap());
+
+        if (response.getStale()) {
+            //Send response in cache if received response is not updated
+            if (cached != null)
+                return this.responseCache.serveStale(cached);
+            //answered with its result because stale data was allowed
+            this.responseCache.missStale();
+            response = response.toBuilder().setStale(false).build();
+        } else
+            this.responseCache.addEntry(serviceDesc, response);
+
         //Merge Timestamps
         mergeTS(response.getResponseTSMap());
 
+        return response;
+    }
 
-        this.attempts.clear();
-        this.attempts.add(this.currentPath);
+    //the query goes to a second replica when the first one is slower than most recent queries
+    //the first answer covering prevTS is used and the other call is cancelled
+    private ClientResponse runHedged(Request request) {
+        ListenableFuture<ClientResponse> primary = request.runAsyncRequest(SiloOperationsServiceGrpc.newFutureStub(this.queryChannel));
+        try {
+            return primary.get(getHedgeDelayNanos(), TimeUnit.NANOSECONDS);
+        } catch (TimeoutException e) {
+            //slower than usual, hedged below
+        } catch (ExecutionException e) {
+            throw Status.fromThrowable(e.getCause()).asRuntimeException();
+        } catch (InterruptedException e) {
+            primary.cancel(true);
+            Thread.currentThread().interrupt();
+            throw Status.CANCELLED.withDescription("Query interrupted").asRuntimeException();
+        }
 
-        return response;
+        ManagedChannel hedgeChannel = getHedgeChannel();
+        if (hedgeChannel == null)
+            return awaitResponse(primary);
+        ListenableFuture<ClientResponse> hedge = request.runAsyncRequest(SiloOperationsServiceGrpc.newFutureStub(hedgeChannel));
+
+        CompletableFuture<ClientResponse> winner = new CompletableFuture<>();
+        AtomicInteger finished = new AtomicInteger();
+        for (ListenableFuture<ClientResponse> call : List.of(primary, hedge)) {
+            call.addListener(() -> {
+                ClientResponse response = getDoneOrNull(call);
+                if (response != null && !response.getStale())
+                    winner.complete(response);
+
+                //neither answer covers prevTS, settle as an unhedged query would
+                if (finished.incrementAndGet() == 2) {
+                    ClientResponse fallback = getDoneOrNull(primary);
+                    if (fallback == null)
+                        fallback = getDoneOrNull(hedge);
+                    if (fallback != null)
+                        winner.complete(fallback);
+                    else
+                        winner.completeExceptionally(Status.fromThrowable(getFailure(primary)).asRuntimeException());
+                }
+            }, MoreExecutors.directExecutor());
+        }
+
+        try {
+            return awaitResponse(winner);
+        } finally {
+            primary.cancel(true);
+            hedge.cancel(true);
+        }
+    }
+
+    private long getHedgeDelayNanos() {
+        long percentile = this.queryLatency.percentile(HEDGE_PERCENTILE);
+        if (percentile < 0)
+            return TimeUnit.MILLISECONDS.toNanos(DEFAULT_HEDGE_DELAY_MILLIS);
+        return Math.max(percentile, TimeUnit.MILLISECONDS.toNanos(MIN_HEDGE_DELAY_MILLIS));
+    }
+
+    //another replica or follower, chosen by the selector, null when there is none
+    private ManagedChannel getHedgeChannel() {
+        if (this.isStatic)
+            return null;
+
+        Map<String, String> uris = new HashMap<>();
+        for (ZKRecord record : this.directory.getReplicas())
+            uris.put(record.getPath(), record.getURI());
+        for (ZKRecord record : this.directory.getFollowers())
+            uris.put(record.getPath(), record.getURI());
+        uris.values().removeIf(uri -> uri.equals(this.queryTarget));
+        if (uris.isEmpty())
+            return null;
+
+        String path = this.selector.choose(new ArrayList<>(uris.keySet()), this.prevTS.get());
+        return this.hedgeChannels.computeIfAbsent(uris.get(path), uri -> buildChannel(path, uri));
+    }
 
+    private static ClientResponse getDoneOrNull(Future<ClientResponse> call) {
+        try {
+            return Futures.getDone(call);
+        } catch (ExecutionException | CancellationException e) {
+            return null;
+        }
     }
 
+    private static Throwable getFailure(Future<ClientResponse> call) {
+        try {
+            Futures.getDone(call);
+            return null;
+        } catch (ExecutionException e) {
+            return e.getCause();
+        } catch (CancellationException e) {
+            return e;
+        }
+    }
+
+    private static ClientResponse awaitResponse(Future<ClientResponse> call) {
+        try {
+            return call.get();
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof StatusRuntimeException)
+                throw (StatusRuntimeException) e.getCause();
+            throw Status.fromThrowable(e.getCause()).asRuntimeException();
+        } catch (InterruptedException e) {
+            call.cancel(true);
+            Thread.currentThread().interrupt();
+            throw Status.CANCELLED.withDescription("Query interrupted").asRuntimeException();
+        }
+    }
 
     public UpdateResponse camJoin(String camName, double latitude, double longitude) {
 
         //Builds request and saves it in case of lost connection
         CamJoin request = new CamJoin();
         //Builds grpc request
-        request.buildRequest(camName, latitude, longitude, this.prevTS, getUUID());
+        request.buildRequest(camName, latitude, longitude, this.prevTS.get(), getUUID());
 
 
         ClientResponse response = request.runRequest(this.stub);
@@ -171,37 +611,48 @@ public class SiloFrontend implements AutoCloseable {
 
         CamInfo request = new CamInfo(serviceDesc);
         //Builds grpc request
-        request.buildRequest(camName, this.prevTS, getUUID());
-        this.previousRequest = request;
+        request.buildRequest(camName, this.prevTS.get(), getUUID());
+        this.previousRequest.set(request);
 
+        ClientResponse response = runQuery(request);
 
-        ClientResponse response = this.previousRequest.runRequest(this.stub);
+        return response.getCamInfoResponse();
+    }
 
-        convertTimestamp(response.getResponseTSMap());
+    public UpdateResponse reportObs(String camName, List<List<String>> observations) {
 
-        //Send response in cache if received response is not updated
-        if (happensBefore(response.getResponseTSMap()))
-            this.responseCache.addEntry(serviceDesc, response);
-        else
-            return this.responseCache.getLastRead(serviceDesc).getCamInfoResponse();
+
+        //Builds request and saves it in case of lost connection
+        Report request = new Report();
+        //Builds grpc request
+        request.buildRequest(camName, observations, this.prevTS.get(), getUUID());
+        this.previousRequest.set(request);
+
+        ClientResponse response = request.runRequest(this.stub);
 
         //Merge Timestamps
         mergeTS(response.getResponseTSMap());
 
+        convertTimestamp(response.getResponseTSMap());
 
-        return response.getCamInfoResponse();
-    }
+        return response.getUpdateResponse();
 
-    public UpdateResponse reportObs(String camName, List<List<String>> observations) {
+    }
 
+    //report stamped with the session timestamp and a fresh id, for callers that keep it before sending
+    public ClientRequest buildReport(String camName, List<List<String>> observations) {
+        Report request = new Report();
+        request.buildRequest(camName, observations, this.prevTS.get(), getUUID());
+        return request.getRequest();
+    }
 
-        //Builds request and saves it in case of lost connection
+    //sends a report built earlier with its original id, so a resend is rejected as a duplicate
+    public UpdateResponse sendReport(ClientRequest clientRequest) {
         Report request = new Report();
-        //Builds grpc request
-        request.buildRequest(camName, observations, this.prevTS, getUUID());
-        this.previousRequest = request;
+        request.setRequest(clientRequest);
+        this.previousRequest.set(request);
 
-        ClientResponse response = this.previousRequest.runRequest(this.stub);
+        ClientResponse response = request.runRequest(this.stub);
 
         //Merge Timestamps
         mergeTS(response.getResponseTSMap());
@@ -209,14 +660,11 @@ public class SiloFrontend implements AutoCloseable {
         convertTimestamp(response.getResponseTSMap());
 
         return response.getUpdateResponse();
-
     }
 
 
     public TrackResponse trackObj(String type, String id) {
 
-        ClientResponse response;
-
         //Entry for response cache -> function name, args...
         List<String> serviceDesc = new ArrayList<>();
         serviceDesc.add("TrackObject");
@@ -226,34 +674,16 @@ public class SiloFrontend implements AutoCloseable {
         //Builds request and saves it in case of lost connection
         Track request = new Track(serviceDesc);
         //Builds grpc request
-        request.buildRequest(type, id, this.prevTS, getUUID());
-        ClientRequest cliRequest = request.getRequest();
-        this.previousRequest = request;
-
-        Map<Integer,Integer> responseTS = getResponseTimestamp();
-
-        convertTimestamp(responseTS);
-
-        if (!happensBefore(responseTS)) {
-            //Send response in cache if received response is not updated
-            ClientResponse cacheResponse = this.responseCache.getLastRead(serviceDesc);
-            if (cacheResponse != null) return cacheResponse.getTrackResponse();
-        }
-
-        response = this.previousRequest.runRequest(this.stub);
-        this.responseCache.addEntry(serviceDesc, response);
-
-        //Merge Timestamps
-        mergeTS(responseTS);
+        request.buildRequest(type, id, this.prevTS.get(), getUUID());
+        this.previousRequest.set(request);
 
+        ClientResponse response = runQuery(request);
 
         return response.getTrackResponse();
     }
 
     public TraceResponse trackMatchObj(String type, String id) {
 
-        ClientResponse response;
-
         //Entry for response cache -> funtion name, args...
         List<String> serviceDesc = new ArrayList<>();
         serviceDesc.add("TrackMatchObject");
@@ -263,33 +693,16 @@ public class SiloFrontend implements AutoCloseable {
         //Builds request and saves it in case of lost connection
         TrackMatch request = new TrackMatch(serviceDesc);
         //Builds grpc request
-        request.buildRequest(type, id, this.prevTS, getUUID());
-        this.previousRequest = request;
-
-        Map<Integer,Integer> responseTS = getResponseTimestamp();
-
-        convertTimestamp(responseTS);
-
-        if (!happensBefore(responseTS)) {
-            //Send response in cache if received response is not updated
-            ClientResponse cacheResponse = this.responseCache.getLastRead(serviceDesc);
-            if (cacheResponse != null) return cacheResponse.getTraceResponse();
-        }
-
-        response = this.previousRequest.runRequest(this.stub);
-        this.responseCache.addEntry(serviceDesc, response);
-
-        //Merge Timestamps
-        mergeTS(responseTS);
+        request.buildRequest(type, id, this.prevTS.get(), getUUID());
+        this.previousRequest.set(request);
 
+        ClientResponse response = runQuery(request);
 
         return response.getTraceResponse();
     }
 
     public TraceResponse traceObj(String type, String id) {
 
-        ClientResponse response;
-
         //Entry for response cache -> funtion name, args...
         List<String> serviceDesc = new ArrayList<>();
         serviceDesc.add("TraceObject");
@@ -299,26 +712,54 @@ public class SiloFrontend implements AutoCloseable {
         //Builds request and saves it in case of lost connection
         Trace request = new Trace(serviceDesc);
         //Builds grpc request
-        request.buildRequest(type, id, this.prevTS, getUUID());
-        this.previousRequest = request;
+        request.buildRequest(type, id, this.prevTS.get(), getUUID());
+        this.previousRequest.set(request);
 
-        Map<Integer,Integer> responseTS = getResponseTimestamp();
+        ClientResponse response = runQuery(request);
 
-        convertTimestamp(responseTS);
+        return response.getTraceResponse();
+    }
 
-        if (!happensBefore(responseTS)) {
-            //Send response in cache if received response is not updated
-            ClientResponse cacheResponse = this.responseCache.getLastRead(serviceDesc);
-            if (cacheResponse != null) return cacheResponse.getTraceResponse();
+    //keys are (type, id) pairs, answered from one state of the replica and streamed back one per key
+    public Iterator<BatchQueryResponse> batchTrack(List<List<String>> keys) {
+        return batchQuery(keys, false);
+    }
+
+    public Iterator<BatchQueryResponse> batchTrace(List<List<String>> keys) {
+        return batchQuery(keys, true);
+    }
+
+    //a batch is not run again by runPreviousCommand, the caller sends it again after renewConnection
+    private Iterator<BatchQueryResponse> batchQuery(List<List<String>> keys, boolean trace) {
+        this.previousRequest.remove();
+
+        BatchQueryRequest.Builder builder = BatchQueryRequest.newBuilder().putAllPrevTS(this.prevTS.get());
+        for (List<String> key : keys)
+            builder.addKey(ObjectKey.newBuilder().setType(key.get(0)).setId(key.get(1)));
+        BatchQueryRequest request = builder.build();
+
+        Iterator<BatchQueryResponse> responses = runBatchQuery(this.queryStub, request, trace);
+        if (!responses.hasNext())
+            return responses;
+
+        //the first message tells whether the replica has seen everything this client has
+        BatchQueryResponse first = responses.next();
+        if (first.getStale()) {
+            //the replica this client updates has seen its own writes, even when a follower lags behind
+            responses = runBatchQuery(this.stub, request.toBuilder().setAllowStale(true).build(), trace);
+            if (!responses.hasNext())
+                return responses;
+            first = responses.next();
         }
 
-        response = this.previousRequest.runRequest(this.stub);
-        this.responseCache.addEntry(serviceDesc, response);
         //Merge Timestamps
-        mergeTS(responseTS);
+        mergeTS(first.getResponseTSMap());
 
+        return Iterators.concat(Iterators.singletonIterator(first), responses);
+    }
 
-        return response.getTraceResponse();
+    private static Iterator<BatchQueryResponse> runBatchQuery(SiloOperationsServiceGrpc.SiloOperationsServiceBlockingStub stub, BatchQueryRequest request, boolean trace) {
+        return trace ? stub.batchTrace(request) : stub.batchTrack(request);
     }
 
 
@@ -331,7 +772,7 @@ public class SiloFrontend implements AutoCloseable {
         //Builds request and saves it in case of lost connection
         Ping request = new Ping(serviceDesc);
         //Builds grpc request
-        request.buildRequest(this.prevTS, getUUID());
+        request.buildRequest(this.prevTS.get(), getUUID());
 
         ClientResponse response = request.runRequest(this.stub);
 
@@ -346,9 +787,9 @@ public class SiloFrontend implements AutoCloseable {
         //Builds request and saves it in case of lost connection
         Clear request = new Clear();
         //Builds grpc request
-        request.buildRequest(this.prevTS, getUUID());
-        this.previousRequest = request;
-        ClientResponse response = this.previousRequest.runRequest(this.stub);
+        request.buildRequest(this.prevTS.get(), getUUID());
+        this.previousRequest.set(request);
+        ClientResponse response = request.runRequest(this.stub);
 
         //Merge Timestamps
         mergeTS(response.getResponseTSMap());
@@ -364,10 +805,10 @@ public class SiloFrontend implements AutoCloseable {
         //Builds request and saves it in case of lost connection
         Init request = new Init();
         //Builds grpc request
-        request.buildRequest(this.prevTS, getUUID());
-        this.previousRequest = request;
+        request.buildRequest(this.prevTS.get(), getUUID());
+        this.previousRequest.set(request);
 
-        ClientResponse response = this.previousRequest.runRequest(this.stub);
+        ClientResponse response = request.runRequest(this.stub);
 
         //Merge Timestamps
         mergeTS(response.getResponseTSMap());
@@ -380,10 +821,8 @@ public class SiloFrontend implements AutoCloseable {
 
     private String getServerTarget(String zooHost, String zooPort, String repN) throws ZKNamingException, NoServersAvailableException {
 
-        Random random = new Random();
         String path;
-        ZKNaming zkNaming = new ZKNaming(zooHost, zooPort);
-        ArrayList<ZKRecord> recs = new ArrayList<>(zkNaming.listRecords("/grpc/sauron/silo"));
+        List<ZKRecord> recs = this.directory.getReplicas();
 
         if (this.previousAvailableServers != -1 && this.previousAvailableServers != recs.size()) this.attempts.clear();
 
@@ -394,10 +833,15 @@ public class SiloFrontend implements AutoCloseable {
 
         if (repN.equals("")) {
 
-            path = recs.get(random.nextInt(recs.size())).getPath();
-            while (attempts.contains(path)) {
-                path = recs.get(random.nextInt(recs.size())).getPath();
+            //best of two random replicas not tried yet
+            List<String> candidates = new ArrayList<>();
+            for (ZKRecord rec : recs) {
+                if (!attempts.contains(rec.getPath()))
+                    candidates.add(rec.getPath());
             }
+            if (candidates.isEmpty())
+                throw new NoServersAvailableException();
+            path = this.selector.choose(candidates, this.prevTS.get());
         } else
             path = "/grpc/sauron/silo/" + repN;
 
@@ -411,7 +855,7 @@ public class SiloFrontend implements AutoCloseable {
 
 
         // lookup
-        ZKRecord record = zkNaming.lookup(path);
+        ZKRecord record = this.directory.lookup(path);
         return record.getURI();
     }
 
@@ -431,43 +875,47 @@ public class SiloFrontend implements AutoCloseable {
         this.port = port;
     }
 
+    //hit, miss and stale-serve counters of the query cache
+    public ResponseCache getResponseCache() {
+        return responseCache;
+    }
+
     public Map<Integer, Integer> getPrevTS() {
-        return prevTS;
+        return prevTS.get();
     }
 
     public void setPrevTS(Map<Integer, Integer> prevTS) {
-        this.prevTS = prevTS;
+        this.prevTS.set(prevTS);
     }
 
     private String getUUID() {
         return UUID.randomUUID().toString();
     }
 
+    public boolean isHedging() {
+        return hedging;
+    }
+
+    //queries slower than usual are also sent to a second replica
+    public void setHedging(boolean hedging) {
+        this.hedging = hedging;
+    }
+
     public String getTarget() {
         return target;
     }
 
+    public String getQueryTarget() {
+        return queryTarget;
+    }
+
     public String getRepN() {
         return repN;
     }
 
+    //merged atomically, responses from concurrent calls may arrive in any order
     private void mergeTS(Map<Integer, Integer> map) {
-        for (Integer key : map.keySet()) {
-            if (this.prevTS.containsKey(key))
-                this.prevTS.put(key, Integer.max(this.prevTS.get(key), map.get(key)));
-            else
-                this.prevTS.put(key, map.get(key));
-        }
-    }
-
-
-    private boolean happensBefore(Map<Integer, Integer> map) {
-        boolean isBefore = true;
-        for (Map.Entry<Integer, Integer> entryA : this.prevTS.entrySet()) {
-            Integer valueB = map.getOrDefault(entryA.getKey(), 0);
-            if (entryA.getValue() > valueB) isBefore = false;
-        }
-        return isBefore;
+        this.prevTS.merge(map);
     }
 
 
@@ -475,39 +923,36 @@ public class SiloFrontend implements AutoCloseable {
     //display TS map in order and converted to friendly presentation
     private void convertTimestamp(Map<Integer,Integer> timestamp) {
 
-        ZKNaming zkNaming = new ZKNaming(this.host, this.port);
-        ArrayList<ZKRecord> recs = null;
-        try {
-            recs = new ArrayList<>(zkNaming.listRecords("/grpc/sauron/silo"));
-        } catch (ZKNamingException e) {
-            e.printStackTrace();
-        }
-        List<Integer> replicaNumbers = new ArrayList<>();
-
-        for (ZKRecord path: recs) {
-            String[] segments = path.getPath().split("/");
-            String rep = segments[segments.length - 1];
-
-            replicaNumbers.add(Integer.parseInt(rep));
-        }
-        Collections.sort(replicaNumbers);
+        //membership comes from the watched view, no naming lookup on the request path
+        List<Integer> replicaNumbers = this.directory.getReplicaNumbers();
 
-        System.out.print("Response with TS: ");
+        //printed as a single line, so concurrent calls do not interleave
+        StringBuilder line = new StringBuilder("Response with TS: ");
         for(Integer replica :replicaNumbers) {
-            if (timestamp.get(replica) == null) System.out.print( "Rep " + replica + " -> 0; ");
-            else System.out.print( "Rep " + replica +" -> " + timestamp.get(replica) + "; ");
+            if (timestamp.get(replica) == null) line.append("Rep ").append(replica).append(" -> 0; ");
+            else line.append("Rep ").append(replica).append(" -> ").append(timestamp.get(replica)).append("; ");
         }
-        System.out.println();
+        System.out.println(line);
 
     }
 
     public Map<Integer,Integer> getResponseTimestamp() {
         EmptyRequest emptyRequest = EmptyRequest.newBuilder().build();
-        return this.stub.timestamp(emptyRequest).getResponseTSMap();
+        return this.queryStub.timestamp(emptyRequest).getResponseTSMap();
     }
 
     @Override
     public final void close() {
+        if (scheduler != null)
+            scheduler.shutdownNow();
+        if (standbyChannel != null)
+            standbyChannel.shutdown();
+        selector.close();
+        for (ManagedChannel hedgeChannel : hedgeChannels.values())
+            hedgeChannel.shutdown();
+        if (queryChannel != null && queryChannel != channel)
+            queryChannel.shutdown();
         channel.shutdown();
+        directory.close();
     }
 }
\ No newline at end of file
@@ -1,5 +1,6 @@
 package pt.tecnico.sauron.silo.client.requests;
 
+import com.google.common.util.concurrent.ListenableFuture;
 import pt.tecnico.sauron.silo.grpc.CamInfoRequest;
 import pt.tecnico.sauron.silo.grpc.ClientRequest;
 import pt.tecnico.sauron.silo.grpc.ClientResponse;
@@ -21,6 +22,11 @@ public class CamInfo extends Request {
         return stub.camInfo(getRequest());
     }
 
+    @Override
+    public ListenableFuture<ClientResponse> runAsyncRequest(SiloOperationsServiceGrpc.SiloOperationsServiceFutureStub stub) {
+        return stub.camInfo(getRequest());
+    }
+
     public void buildRequest(String camName, Map<Integer, Integer> prevTs, String opId) {
         ClientRequest request = ClientRequest.newBuilder()
                 .setCamInfoRequest(
@@ -1,5 +1,6 @@
 package pt.tecnico.sauron.silo.client.requests;
 
+import com.google.common.util.concurrent.ListenableFuture;
 import pt.tecnico.sauron.silo.grpc.CamJoinRequest;
 import pt.tecnico.sauron.silo.grpc.ClientRequest;
 import pt.tecnico.sauron.silo.grpc.ClientResponse;
@@ -18,6 +19,11 @@ public class CamJoin extends Request {
         return stub.camJoin(getRequest());
     }
 
+    @Override
+    public ListenableFuture<ClientResponse> runAsyncRequest(SiloOperationsServiceGrpc.SiloOperationsServiceFutureStub stub) {
+        return stub.camJoin(getRequest());
+    }
+
     public void buildRequest(String camName, Double latitude, Double longitude, Map<Integer, Integer> prevTs, String opId) {
         ClientRequest request = ClientRequest.newBuilder()
                 .setCamJoinRequest(CamJoinRequest.newBuilder()
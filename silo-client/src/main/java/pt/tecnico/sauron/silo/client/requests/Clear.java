@@ -1,5 +1,6 @@
 package pt.tecnico.sauron.silo.client.requests;
 
+import com.google.common.util.concurrent.ListenableFuture;
 import pt.tecnico.sauron.silo.grpc.ClientRequest;
 import pt.tecnico.sauron.silo.grpc.ClientResponse;
 import pt.tecnico.sauron.silo.grpc.EmptyRequest;
@@ -19,6 +20,11 @@ public class Clear extends Request {
         return stub.ctrlClear(getRequest());
     }
 
+    @Override
+    public ListenableFuture<ClientResponse> runAsyncRequest(SiloOperationsServiceGrpc.SiloOperationsServiceFutureStub stub) {
+        return stub.ctrlClear(getRequest());
+    }
+
     public void buildRequest(Map<Integer, Integer> prevTs, String opId) {
         ClientRequest request = ClientRequest.newBuilder()
                 .setEmptyRequest(
@@ -1,5 +1,6 @@
 package pt.tecnico.sauron.silo.client.requests;
 
+import com.google.common.util.concurrent.ListenableFuture;
 import pt.tecnico.sauron.silo.grpc.ClientRequest;
 import pt.tecnico.sauron.silo.grpc.ClientResponse;
 import pt.tecnico.sauron.silo.grpc.EmptyRequest;
@@ -21,6 +22,11 @@ public class Ping extends Request {
         return stub.ctrlPing(getRequest());
     }
 
+    @Override
+    public ListenableFuture<ClientResponse> runAsyncRequest(SiloOperationsServiceGrpc.SiloOperationsServiceFutureStub stub) {
+        return stub.ctrlPing(getRequest());
+    }
+
 
     public void buildRequest(Map<Integer, Integer> prevTs, String opId) {
         ClientRequest request = ClientRequest.newBuilder()
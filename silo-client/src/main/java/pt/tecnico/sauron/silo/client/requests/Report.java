@@ -1,5 +1,6 @@
 package pt.tecnico.sauron.silo.client.requests;
 
+import com.google.common.util.concurrent.ListenableFuture;
 import pt.tecnico.sauron.silo.grpc.*;
 
 import java.util.List;
@@ -16,6 +17,11 @@ public class Report extends Request {
         return stub.report(getRequest());
     }
 
+    @Override
+    public ListenableFuture<ClientResponse> runAsyncRequest(SiloOperationsServiceGrpc.SiloOperationsServiceFutureStub stub) {
+        return stub.report(getRequest());
+    }
+
     public void buildRequest(String camName, List<List<String>> observations, Map<Integer, Integer> prevTs, String opId) {
         ReportRequest.Builder builder = ReportRequest.newBuilder()
                 .setCamName(camName);
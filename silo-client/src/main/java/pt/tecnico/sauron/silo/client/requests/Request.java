@@ -1,5 +1,6 @@
 package pt.tecnico.sauron.silo.client.requests;
 
+import com.google.common.util.concurrent.ListenableFuture;
 import pt.tecnico.sauron.silo.grpc.ClientRequest;
 import pt.tecnico.sauron.silo.grpc.ClientResponse;
 import pt.tecnico.sauron.silo.grpc.SiloOperationsServiceGrpc;
@@ -25,6 +26,8 @@ public abstract class Request {
 
     public abstract ClientResponse runRequest(SiloOperationsServiceGrpc.SiloOperationsServiceBlockingStub stub);
 
+    public abstract ListenableFuture<ClientResponse> runAsyncRequest(SiloOperationsServiceGrpc.SiloOperationsServiceFutureStub stub);
+
     public ClientRequest getRequest() {
         return request;
     }
@@ -33,6 +36,11 @@ public abstract class Request {
         this.request = request;
     }
 
+    //a replica that has not seen prevTS yet still answers the query
+    public void allowStale(boolean allowStale) {
+        this.request = this.request.toBuilder().setAllowStale(allowStale).build();
+    }
+
     public boolean isQuery() {
         return isQuery;
     }
@@ -0,0 +1,83 @@
+package pt.tecnico.sauron.silo.client;
+
+import org.junit.jupiter.api.*;
+import pt.tecnico.sauron.silo.client.Exceptions.NoServersAvailableException;
+import pt.tecnico.sauron.silo.grpc.BatchQueryResponse;
+import pt.ulisboa.tecnico.sdis.zk.ZKNamingException;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+public class BatchQueryIT extends BaseIT {
+
+    static SiloFrontend frontend;
+
+    static {
+        try {
+            frontend = new SiloFrontend("localhost", "2181", "");
+        } catch (ZKNamingException | NoServersAvailableException e) {
+            e.printStackTrace();
+        }
+    }
+
+
+    // one-time initialization and clean-up
+    @BeforeAll
+    public static void oneTimeSetUp() {
+
+        frontend.ctrlClear();
+
+        frontend.camJoin("Vale das Mos", 13.3, 51.2);
+        frontend.camJoin("Alcobaca", 15.3, 53.2);
+
+        List<List<String>> observations1 = new ArrayList<>();
+        observations1.add(new ArrayList<>(List.of("CAR", "12AR12", "1999-03-12 12:12:12")));
+        observations1.add(new ArrayList<>(List.of("PERSON", "123456", "2010-09-12 12:12:12")));
+        frontend.reportObs("Vale das Mos", observations1);
+
+        List<List<String>> observations2 = new ArrayList<>();
+        observations2.add(new ArrayList<>(List.of("CAR", "12AR12", "2015-09-12 12:12:12")));
+        frontend.reportObs("Alcobaca", observations2);
+    }
+
+    @AfterAll
+    public static void oneTimeTearDown() {
+
+        frontend.ctrlClear();
+        frontend.close();
+    }
+
+    @Test
+    //one result per key, in the order asked, a missing object only fails its own result
+    public void batchTrack() {
+        List<List<String>> keys = List.of(List.of("CAR", "12AR12"), List.of("PERSON", "123456"), List.of("CAR", "99ZZ99"));
+        Iterator<BatchQueryResponse> responses = frontend.batchTrack(keys);
+
+        BatchQueryResponse car = responses.next();
+        assertEquals("12AR12", car.getKey().getId());
+        assertEquals("Alcobaca", car.getTrack().getObservation().getCamName());
+
+        BatchQueryResponse person = responses.next();
+        assertEquals("Vale das Mos", person.getTrack().getObservation().getCamName());
+
+        BatchQueryResponse missing = responses.next();
+        assertEquals("99ZZ99", missing.getKey().getId());
+        assertEquals(BatchQueryResponse.ResultCase.ERROR, missing.getResultCase());
+
+        assertTrue(!responses.hasNext());
+    }
+
+    @Test
+    public void batchTrace() {
+        Iterator<BatchQueryResponse> responses = frontend.batchTrace(List.of(List.of("CAR", "12AR12")));
+
+        BatchQueryResponse car = responses.next();
+        assertEquals(2, car.getTrace().getObservationCount());
+        assertEquals("Alcobaca", car.getTrace().getObservation(0).getCamName());
+    }
+
+}
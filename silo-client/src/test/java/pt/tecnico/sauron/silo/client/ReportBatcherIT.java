@@ -0,0 +1,58 @@
+package pt.tecnico.sauron.silo.client;
+
+import org.junit.jupiter.api.*;
+import pt.tecnico.sauron.silo.client.Exceptions.NoServersAvailableException;
+import pt.tecnico.sauron.silo.grpc.UpdateResponse;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+
+import static org.junit.Assert.assertEquals;
+
+public class ReportBatcherIT extends BaseIT {
+
+    static SiloAsyncFrontend frontend;
+
+    static {
+        try {
+            frontend = new SiloAsyncFrontend("localhost", "2181", "");
+        } catch (NoServersAvailableException e) {
+            e.printStackTrace();
+        }
+    }
+
+
+    // one-time initialization and clean-up
+    @BeforeAll
+    public static void oneTimeSetUp() {
+
+        frontend.ctrlClear().join();
+
+        frontend.camJoin("Vale das Mos", 13.3, 51.2).join();
+    }
+
+    @AfterAll
+    public static void oneTimeTearDown() {
+
+        frontend.ctrlClear().join();
+        frontend.close();
+    }
+
+    @Test
+    //observations of a camera end up in a few reports, all of them saved
+    public void batchedReports() {
+        List<CompletableFuture<UpdateResponse>> results = new ArrayList<>();
+        try (ReportBatcher batcher = new ReportBatcher(frontend, 10, 1000, 2)) {
+            for (int i = 0; i < 25; i++)
+                results.add(batcher.add("Vale das Mos", "CAR", String.format("%02dAA00", i), "2015-09-12 12:12:12"));
+        }
+
+        for (CompletableFuture<UpdateResponse> result : results)
+            result.join();
+
+        for (int i = 0; i < 25; i++)
+            assertEquals("Vale das Mos", frontend.trackObj("CAR", String.format("%02dAA00", i)).join().getObservation().getCamName());
+    }
+
+}
@@ -0,0 +1,83 @@
+package pt.tecnico.sauron.silo.client;
+
+import io.grpc.StatusRuntimeException;
+import org.junit.jupiter.api.*;
+import pt.tecnico.sauron.silo.client.Exceptions.NoServersAvailableException;
+import pt.tecnico.sauron.silo.grpc.TrackResponse;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+
+import static io.grpc.Status.NOT_FOUND;
+import static org.junit.Assert.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+public class SiloAsyncFrontendIT extends BaseIT {
+
+    static SiloAsyncFrontend frontend;
+
+    static {
+        try {
+            frontend = new SiloAsyncFrontend("localhost", "2181", "");
+        } catch (NoServersAvailableException e) {
+            e.printStackTrace();
+        }
+    }
+
+
+    // one-time initialization and clean-up
+    @BeforeAll
+    public static void oneTimeSetUp() {
+
+        frontend.ctrlClear().join();
+
+        frontend.camJoin("Vale das Mos", 13.3, 51.2).join();
+
+        List<List<String>> observations = new ArrayList<>();
+        List<String> observationMessage = new ArrayList<>();
+        observationMessage.add("CAR");
+        observationMessage.add("12AR12");
+        observationMessage.add("2015-09-12 12:12:12");
+        observations.add(observationMessage);
+
+        frontend.reportObs("Vale das Mos", observations).join();
+    }
+
+    @AfterAll
+    public static void oneTimeTearDown() {
+
+        frontend.ctrlClear().join();
+        frontend.close();
+    }
+
+    @Test
+    //many lookups in flight at once over the same channel
+    public void concurrentTracks() {
+        List<CompletableFuture<TrackResponse>> responses = new ArrayList<>();
+        for (int i = 0; i < 200; i++)
+            responses.add(frontend.trackObj("CAR", "12AR12"));
+
+        for (CompletableFuture<TrackResponse> response : responses) {
+            assertEquals("12AR12", response.join().getObservation().getId());
+            assertEquals("Vale das Mos", response.join().getObservation().getCamName());
+        }
+    }
+
+    @Test
+    //the session timestamp follows the updates made through the frontend
+    public void timestampMerged() {
+        assertTrue(frontend.getPrevTS().get().values().stream().anyMatch(value -> value > 0));
+    }
+
+    @Test
+    //errors complete the future exceptionally
+    public void noCarFound() {
+        ExecutionException e = assertThrows(ExecutionException.class, () -> frontend.trackObj("CAR", "99ZZ99").get());
+
+        assertEquals(NOT_FOUND.getCode(), ((StatusRuntimeException) e.getCause()).getStatus().getCode());
+    }
+
+}
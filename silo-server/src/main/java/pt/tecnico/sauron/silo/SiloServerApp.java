@@ -2,20 +2,37 @@ package pt.tecnico.sauron.silo;
 
 
 import io.grpc.Server;
-import io.grpc.ServerBuilder;
+import io.grpc.StatusRuntimeException;
+import io.grpc.netty.shaded.io.grpc.netty.NettyServerBuilder;
+import pt.tecnico.sauron.silo.api.AntiEntropyGateway;
+import pt.tecnico.sauron.silo.api.GossipScheduler;
+import pt.tecnico.sauron.silo.api.GossipTopology;
 import pt.tecnico.sauron.silo.api.ServerGossipGateway;
+import pt.tecnico.sauron.silo.api.SnapshotGateway;
 import pt.ulisboa.tecnico.sdis.zk.ZKNaming;
 import pt.ulisboa.tecnico.sdis.zk.ZKNamingException;
+import pt.ulisboa.tecnico.sdis.zk.ZKRecord;
 
 import java.io.IOException;
 import java.util.*;
+import java.util.concurrent.TimeUnit;
 
 import static java.lang.System.exit;
 
 public class SiloServerApp {
 
+    //anti-entropy with a random replica runs on the first and every ANTI_ENTROPY_ROUNDS gossip rounds
+    private static final int ANTI_ENTROPY_ROUNDS = 10;
+
+    //clients ping idle connections to notice a crashed replica, anything more frequent is refused
+    private static final long PERMIT_KEEPALIVE_SECONDS = 5;
+
+    private static int gossipRounds = 0;
+
     public static void main(String[] args) throws IOException, InterruptedException, ZKNamingException {
         ZKNaming zkNaming = null;
+        GossipScheduler gossipScheduler = null;
+        SiloServiceImp service = null;
         System.out.println(SiloServerApp.class.getSimpleName());
 
         // receive and print arguments
@@ -40,6 +57,7 @@ public class SiloServerApp {
         int port1;
         int gossipPeriod1 = 30000;
         final int gossipPeriod;
+        final GossipTopology topology;
 
         try {
             port1 = Integer.parseInt(args[4]);
@@ -47,34 +65,54 @@ public class SiloServerApp {
             port1 = 8081;
         }
 
-        if (args.length == 6)
+        if (args.length >= 6)
             gossipPeriod1 = Integer.parseInt(args[5]);
 
+        //all, random:k or ring:k
+        try {
+            topology = args.length >= 7 ? GossipTopology.parse(args[6]) : GossipTopology.all();
+        } catch (IllegalArgumentException e) {
+            System.err.println("Invalid gossip topology " + args[6] + ", expected all, random:k or ring:k");
+            return;
+        }
+
+
+        //instances named f<n> are read-only followers, registered apart from the replicas
+        final boolean follower = args[2].startsWith("f");
+        final String instance = follower ? args[2].substring(1) : args[2];
 
         zooHost = args[0];
         zooPort = args[1];
-        path = "/grpc/sauron/silo/" + args[2];
+        path = (follower ? "/grpc/sauron/follower/" : "/grpc/sauron/silo/") + instance;
         host = args[3];
         port = port1;
         gossipPeriod = gossipPeriod1;
 
         try {
-            int repN = Integer.parseInt(args[2]);
-            final SiloServiceImp impl = new SiloServiceImp(repN);
+            int repN = Integer.parseInt(instance);
+            //followers never issue updates, so they take no entry in the timestamps
+            final SiloServiceImp impl = new SiloServiceImp(follower ? 0 : repN, follower);
+            service = impl;
 
 
             // Create a new server to listen on port
-            Server server = ServerBuilder.forPort(port).addService(impl).build();
+            Server server = NettyServerBuilder.forPort(port)
+                    .permitKeepAliveTime(PERMIT_KEEPALIVE_SECONDS, TimeUnit.SECONDS)
+                    .permitKeepAliveWithoutCalls(true)
+                    .addService(impl).build();
 
             zkNaming = new ZKNaming(zooHost, zooPort);
             // publish
             zkNaming.rebind(path, host, portBind);
 
+            //copy the state of a running replica, peers keep their backlog for us until the server starts
+            bootstrap(impl, zkNaming, path, repN);
+
             // Start the server
             server.start();
 
             // Server threads are running in the background.
-            System.out.println("Replica " + repN + " starting…");
+            System.out.println((follower ? "Follower " : "Replica ") + repN + " starting…");
 
             //Server terminates when user presses enter
             new Thread(() -> {
@@ -83,32 +121,15 @@ public class SiloServerApp {
                 server.shutdown();
             }).start();
 
-            //Server starts gossip service
-            ZKNaming finalZkNaming = zkNaming;
-            new Thread(() -> {
-
-                Timer timer = new Timer();
-                timer.schedule(new TimerTask() {
-                    @Override
-                    public void run() {
-
-                        try {
-                            List<String> missedGossips = new ArrayList<>();
-                            ServerGossipGateway gateway = new ServerGossipGateway(zooHost, zooPort, args[2]);
-                            if (finalZkNaming.listRecords("/grpc/sauron/silo").size() > 1) {
-                                System.out.println("Replica " + repN + " initiating gossip…");
-                                missedGossips = gateway.gossip(impl.buildGossipRequest(),impl.getBackupGossip(),impl.getMissingReplicas());
-                                //if there are no missed gossips, we can erase de update log
-                                impl.gossipHandler(missedGossips);
-                                gateway.close();
-
-                            }
-                        } catch (ZKNamingException e) {
-                            e.printStackTrace();
-                        }
-                    }
-                }, gossipPeriod, gossipPeriod);
-            }).start();
+            //Server starts gossip service, rounds follow the load on the update log
+            //followers only receive gossip from the replicas
+            if (!follower) {
+                ZKNaming finalZkNaming = zkNaming;
+                gossipScheduler = new GossipScheduler(
+                        () -> gossipRound(impl, finalZkNaming, zooHost, zooPort, instance, topology), gossipPeriod);
+                impl.setGossipScheduler(gossipScheduler);
+                gossipScheduler.start();
+            }
 
             // Do not exit the main thread. Wait until server is terminated.
             server.awaitTermination();
@@ -118,6 +139,10 @@ public class SiloServerApp {
 
 
         } finally {
+            if (gossipScheduler != null)
+                gossipScheduler.close();
+            if (service != null)
+                service.close();
             if (zkNaming != null) {
                 // remove
                 zkNaming.unbind(path, host, portBind);
@@ -126,4 +151,74 @@ public class SiloServerApp {
         }
     }
 
+    //runs a gossip round, returns true if there were updates to send
+    private static boolean gossipRound(SiloServiceImp impl, ZKNaming zkNaming, String zooHost, String zooPort, String instance, GossipTopology topology) {
+        try {
+            if (zkNaming.listRecords("/grpc/sauron/silo").size() <= 1)
+                return false;
+
+            try (ServerGossipGateway gateway = new ServerGossipGateway(zooHost, zooPort, instance, topology)) {
+                System.out.println("Replica " + instance + " initiating gossip with " + gateway.getTargets() + "…");
+                impl.prepareGossip();
+                boolean busy = impl.getServerRequestHandler().hasGossipBacklog();
+
+                List<String> missedGossips = gateway.gossip(impl.getServerRequestHandler());
+                if (!missedGossips.isEmpty())
+                    System.out.println("Replicas " + missedGossips + " will resume on next gossip");
+                //if every replica acknowledged the backlog, we can erase it
+                //when relaying, records are kept until they had time to reach every replica
+                if (topology.isAll())
+                    impl.gossipHandler(gateway.getTargets());
+                else
+                    impl.expireGossip(topology.retainRounds(gateway.getReplicaCount()));
+
+                if (gossipRounds++ % ANTI_ENTROPY_ROUNDS == 0 && !gateway.getTargets().isEmpty())
+                    antiEntropy(impl, new ArrayList<>(gateway.getTargets()));
+                return busy;
+            }
+        } catch (ZKNamingException e) {
+            e.printStackTrace();
+            return false;
+        }
+    }
+
+    //a joining replica streams a snapshot from a running one instead of starting empty
+    private static void bootstrap(SiloServiceImp impl, ZKNaming zkNaming, String path, int repN) throws ZKNamingException {
+        List<ZKRecord> records = new ArrayList<>(zkNaming.listRecords("/grpc/sauron/silo"));
+        Collections.shuffle(records);
+
+        for (ZKRecord record : records) {
+            if (record.getPath().equals(path))
+                continue;
+
+            try (SnapshotGateway gateway = new SnapshotGateway(record.getURI())) {
+                System.out.println("Replica " + repN + " fetching snapshot from replica at " + record.getURI() + "…");
+                impl.installSnapshot(gateway.fetch(repN));
+                System.out.println("Snapshot installed, gossip resumes from " + impl.getServerRequestHandler().getValueTS());
+                return;
+            } catch (StatusRuntimeException e) {
+                System.out.println("Snapshot from replica at " + record.getURI() + " failed: " + e.getStatus().getDescription());
+            } catch (Exception e) {
+                System.out.println("Snapshot from replica at " + record.getURI() + " is invalid: " + e.getMessage());
+            }
+        }
+        System.out.println("No replica available for a snapshot, starting with an empty silo");
+    }
+
+    //compares the silo with a random replica and repairs the operations and observations it is missing
+    //relayed gossip is not certain to reach every replica before its records expire
+    private static void antiEntropy(SiloServiceImp impl, List<String> targets) {
+        String target = targets.get(new Random().nextInt(targets.size()));
+
+        try (AntiEntropyGateway gateway = new AntiEntropyGateway(target)) {
+            int operations = impl.repairControl(gateway.pullControlLog(impl.getServerRequestHandler()));
+            if (operations > 0)
+                System.out.println("Anti-entropy with replica at " + target + " repaired " + operations + " operations");
+            int repaired = gateway.repair(impl.getSilo(), impl.getUpdateApplier());
+            System.out.println("Anti-entropy with replica at " + target + " repaired " + repaired + " observations");
+        } catch (StatusRuntimeException e) {
+            System.out.println("Anti-entropy with replica at " + target + " failed: " + e.getStatus().getDescription());
+        }
+    }
+
 }
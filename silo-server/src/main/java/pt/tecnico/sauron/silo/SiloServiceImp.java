@@ -1,20 +1,32 @@
 package pt.tecnico.sauron.silo;
 
+import com.google.protobuf.ByteString;
+import io.grpc.Status;
+import io.grpc.stub.ServerCallStreamObserver;
 import io.grpc.stub.StreamObserver;
+import pt.tecnico.sauron.silo.api.AntiEntropyGateway;
 import pt.tecnico.sauron.silo.api.GossipMessage;
+import pt.tecnico.sauron.silo.api.GossipScheduler;
 import pt.tecnico.sauron.silo.api.LogRecord;
 import pt.tecnico.sauron.silo.api.Operation;
+import pt.tecnico.sauron.silo.api.RecordCodec;
 import pt.tecnico.sauron.silo.api.ServerRequestHandler;
+import pt.tecnico.sauron.silo.api.ShardedApplier;
+import pt.tecnico.sauron.silo.api.Snapshot;
+import pt.tecnico.sauron.silo.api.SnapshotChunks;
+import pt.tecnico.sauron.silo.api.UpdateApplier;
 import pt.tecnico.sauron.silo.domain.Camera;
+import pt.tecnico.sauron.silo.domain.MerkleTree;
 import pt.tecnico.sauron.silo.domain.Observation;
 import pt.tecnico.sauron.silo.domain.Silo;
 import pt.tecnico.sauron.silo.exceptions.*;
 import pt.tecnico.sauron.silo.grpc.*;
 
 import java.time.LocalDateTime;
-import java.util.ArrayList;
-import java.util.List;
-import java.util.Map;
+import java.util.*;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
 
 import static io.grpc.Status.*;
 
@@ -22,45 +34,104 @@ import static io.grpc.Status.*;
 public class SiloServiceImp extends SiloOperationsServiceGrpc.SiloOperationsServiceImplBase {
 
 
-    private Silo silo = new Silo();
+    //state is only written by the apply thread, so reads need no locks
+    private volatile Silo silo = new Silo();
 
-    private ServerRequestHandler serverRequestHandler;
+    private volatile ServerRequestHandler serverRequestHandler;
+
+    private final UpdateApplier applier = new UpdateApplier();
+
+    //replaced on a clear, like the rest of the state, and only used from the apply thread
+    private ShardedApplier shardedApplier = new ShardedApplier();
 
     private int replicaNumber;
 
+    //followers only receive gossip and answer queries
+    private boolean follower;
+
+    private GossipScheduler gossipScheduler;
+
 
     public SiloServiceImp(Integer repN) {
+        this(repN, false);
+    }
+
+    public SiloServiceImp(Integer repN, boolean follower) {
         this.serverRequestHandler = new ServerRequestHandler(repN);
         this.replicaNumber = repN;
+        this.follower = follower;
     }
 
 
+    //gossip is refused while more than this many tasks wait for the apply thread
+    private static final int MAX_PENDING_GOSSIP = 1000;
+
+    //reports of one stream waiting for the apply thread
+    private static final int REPORT_STREAM_WINDOW = 8;
+
+    //updates received through gossip have no client waiting for them
+    private static final StreamObserver<ClientResponse> NO_RESPONSE = new StreamObserver<>() {
+        @Override
+        public void onNext(ClientResponse response) {
+        }
+
+        @Override
+        public void onError(Throwable t) {
+            System.out.println("Update received through gossip failed: " + t.getMessage());
+        }
+
+        @Override
+        public void onCompleted() {
+        }
+    };
+
+    //must run on the apply thread
+    //consecutive reports are applied in parallel by camera, the other operations are barriers between them
     public void runUpdates(List<LogRecord> logRecords) {
 
+        List<LogRecord> reports = new ArrayList<>();
+        Set<String> seen = new HashSet<>();
+
         for (LogRecord logRecord : logRecords) {
+            //the same update may arrive from more than one replica
+            if (!seen.add(logRecord.getId()))
+                continue;
+
             Operation operation = logRecord.getOperation();
-            ClientRequest request = operation.getRequest();
-            String function = operation.getOperation();
+            OpCode function = operation.getOperation();
 
+            if (function == OpCode.REPORT) {
+                reports.add(logRecord);
+                continue;
+            }
+            runReports(reports);
 
             switch (function) {
-                case "CamJoin":
-                    camJoinAux(request, null);
+                case CAM_JOIN:
+                    camJoinAux(operation.getRequest(), NO_RESPONSE);
                     break;
-                case "Report":
-                    reportAux(request, null);
-                    break;
-
-                case "CtrlClear":
+                case CTRL_CLEAR:
                     ctrlClearAux();
                     break;
-                case "CtrlInit":
+                case CTRL_INIT:
                     ctrlInitAux();
                     break;
             }
             this.serverRequestHandler.updateReplicaState(logRecord);
         }
+        runReports(reports);
+
+    }
+
+    //valueTS only moves forward once every shard is done
+    private void runReports(List<LogRecord> reports) {
+        if (reports.isEmpty())
+            return;
 
+        this.shardedApplier.apply(reports, report -> reportAux(report.getOperation().getRequest(), NO_RESPONSE));
+        for (LogRecord report : reports)
+            this.serverRequestHandler.updateReplicaState(report);
+        reports.clear();
     }
 
     @Override
@@ -77,33 +148,281 @@ public class SiloServiceImp extends SiloOperationsServiceGrpc.SiloOperationsServ
     @Override
     public void gossip(GossipRequest request, StreamObserver<UpdateResponse> responseObserver) {
         System.out.println("Gossip message Received");
-        List<LogRecord> stableUpdates;
-        //Build gossip object
-        List<LogRecord> lr = new ArrayList<>();
-        for (LogRecordsRequest lrr : request.getLogList()) {
-            OperationRequest opr = lrr.getOperation();
-            lr.add(new LogRecord(lrr.getRepN(),
-                    lrr.getTimestampMap(),
-                    lrr.getPrevTSMap(),
-                    lrr.getId(),
-                    new Operation(opr.getOp(), opr.getRequest())));
+        //Build gossip object, off the apply thread
+        List<LogRecord> lr = acceptGossip(new RecordCodec(), request.getCamerasMap(), request.getLogList(), responseObserver);
+        if (lr == null)
+            return;
+        GossipMessage message = new GossipMessage(lr, request.getRepTsMap());
+
+        //applied in the background, progress shows in valueTS
+        this.applier.execute(() -> applyGossip(message));
+
+        // Send a single response through the stream.
+        responseObserver.onNext(UpdateResponse.newBuilder().build());
+        // Notify the client that the operation has been completed.
+        responseObserver.onCompleted();
+    }
+
+    @Override
+    public StreamObserver<GossipChunk> gossipStream(StreamObserver<GossipAck> responseObserver) {
+        return new StreamObserver<>() {
+            private final RecordCodec codec = new RecordCodec();
+            private boolean rejected = false;
+
+            @Override
+            public void onNext(GossipChunk chunk) {
+                if (this.rejected)
+                    return;
+                if (chunk.getSeq() == 0)
+                    System.out.println("Gossip stream Received from replica " + chunk.getSenderRepN());
+                List<LogRecord> lr = acceptGossip(this.codec, chunk.getCamerasMap(), chunk.getLogList(), responseObserver);
+                if (lr == null) {
+                    this.rejected = true;
+                    return;
+                }
+                //repTs only comes with the last chunk
+                GossipMessage message = new GossipMessage(lr, chunk.getRepTsMap());
+
+                applier.execute(() -> applyGossip(message));
+                responseObserver.onNext(GossipAck.newBuilder().setSeq(chunk.getSeq()).build());
+            }
+
+            @Override
+            public void onError(Throwable t) {
+                System.out.println("Gossip stream interrupted: " + t.getMessage());
+            }
+
+            @Override
+            public void onCompleted() {
+                if (!this.rejected)
+                    responseObserver.onCompleted();
+            }
+        };
+    }
+
+    //decodes gossiped records and refuses them while the apply thread is behind, returns null when refused
+    private List<LogRecord> acceptGossip(RecordCodec codec, Map<Integer, String> cameras, List<LogRecordsRequest> records, StreamObserver<?> responseObserver) {
+        if (this.applier.getPendingTasks() > MAX_PENDING_GOSSIP) {
+            responseObserver.onError(RESOURCE_EXHAUSTED.withDescription("Replica is still applying previous gossip").asRuntimeException());
+            return null;
         }
 
+        codec.addCameras(cameras);
+        List<LogRecord> lr = new ArrayList<>(records.size());
+        try {
+            for (LogRecordsRequest lrr : records)
+                lr.add(codec.decode(lrr));
+        } catch (InvalidGossipRecordException e) {
+            responseObserver.onError(INVALID_ARGUMENT.withDescription(e.getMessage()).asRuntimeException());
+            return null;
+        }
+        return lr;
+    }
+
+    private void applyGossip(GossipMessage message) {
         //Merge replica log with gossip log
-        this.serverRequestHandler.mergeIncomingLog(new GossipMessage(lr, request.getRepTsMap()));
+        this.serverRequestHandler.mergeIncomingLog(message);
+        updatesPending();
 
-        //Get stable updates
-        stableUpdates = this.serverRequestHandler.getStableUpdates();
+        //Get and run stable updates
+        runUpdates(this.serverRequestHandler.getStableUpdates());
 
-        //Run stable updates
-        runUpdates(stableUpdates);
+        //followers never gossip, executed updates can leave the log right away
+        if (this.follower)
+            this.serverRequestHandler.dropExecutedUpdates();
+    }
+
+
+    @Override
+    public void snapshot(SnapshotRequest request, StreamObserver<SnapshotChunk> responseObserver) {
+        System.out.println("Sending snapshot to replica " + request.getRepN());
+
+        //captured on the apply thread, between two updates
+        SnapshotChunks chunks = this.applier.submit(this::captureSnapshot).join();
+
+        //chunks are only built when the transport is ready for them, and no longer once the joining replica gave up
+        ServerCallStreamObserver<SnapshotChunk> observer = (ServerCallStreamObserver<SnapshotChunk>) responseObserver;
+        AtomicBoolean completed = new AtomicBoolean(false);
+        observer.setOnCancelHandler(() -> {
+            completed.set(true);
+            System.out.println("Snapshot to replica " + request.getRepN() + " cancelled");
+        });
+        observer.setOnReadyHandler(() -> {
+            while (!completed.get() && observer.isReady() && chunks.hasNext())
+                observer.onNext(chunks.next());
+            if (!chunks.hasNext() && completed.compareAndSet(false, true))
+                observer.onCompleted();
+        });
+    }
+
+    private SnapshotChunks captureSnapshot() {
+        Map<Integer, Integer> valueTS = new HashMap<>(this.serverRequestHandler.getValueTS());
+        List<String> executedOps = this.serverRequestHandler.getExecutedOps();
+        Map<Camera, List<Observation>> observations = new LinkedHashMap<>();
+        for (Camera camera : this.silo.getCameras())
+            observations.put(camera, new ArrayList<>(camera.getObservations()));
+
+        return new SnapshotChunks(valueTS, executedOps, observations);
+    }
+
+    //state of a joining replica copied from a running one
+    public void installSnapshot(Snapshot snapshot) {
+        this.applier.submit(() -> {
+            this.silo = snapshot.getSilo();
+            this.serverRequestHandler.installSnapshot(snapshot.getValueTS(), snapshot.getExecutedOps());
+        }).join();
+    }
+
+    @Override
+    public void merkleRoots(EmptyRequest request, StreamObserver<MerkleRootsResponse> responseObserver) {
+        MerkleRootsResponse.Builder builder = MerkleRootsResponse.newBuilder();
+
+        for (Camera camera : silo.getCameras()) {
+            builder.addRoot(CameraRoot.newBuilder()
+                    .setCamName(camera.getName())
+                    .setLatitude(camera.getLat())
+                    .setLongitude(camera.getLog())
+                    .setHash(ByteString.copyFrom(camera.getMerkleTree().getHash(0, 0))));
+        }
 
         // Send a single response through the stream.
-        responseObserver.onNext(UpdateResponse.newBuilder().build());
+        responseObserver.onNext(builder.build());
+        // Notify the client that the operation has been completed.
+        responseObserver.onCompleted();
+    }
+
+    @Override
+    public void merkleChildren(MerkleRequest request, StreamObserver<MerkleResponse> responseObserver) {
+        try {
+            MerkleTree tree = silo.getCameraByName(request.getCamName()).getMerkleTree();
+            MerkleResponse.Builder builder = MerkleResponse.newBuilder();
+            int depth = request.getDepth();
+
+            //requests are bounded as the anti-entropy walk sends them, the tree lock is shared with the applier
+            if (depth <= 0 || depth > AntiEntropyGateway.WALK_STEP) {
+                responseObserver.onError(INVALID_ARGUMENT.withDescription("Invalid merkle tree depth").asRuntimeException());
+                return;
+            }
+            if (request.getNodesCount() > AntiEntropyGateway.MAX_NODES) {
+                responseObserver.onError(INVALID_ARGUMENT.withDescription("Too many merkle tree nodes").asRuntimeException());
+                return;
+            }
+
+            //non empty descendants of each node, depth levels below it
+            for (MerkleNode node : request.getNodesList()) {
+                int level = node.getLevel();
+                if (level < 0 || level + depth > MerkleTree.DEPTH || node.getIndex() < 0 || node.getIndex() >= 1L << level) {
+                    responseObserver.onError(INVALID_ARGUMENT.withDescription("Invalid merkle tree node").asRuntimeException());
+                    return;
+                }
+                for (Map.Entry<Long, byte[]> child : tree.getDescendants(level, node.getIndex(), depth).entrySet())
+                    builder.addNodes(MerkleNode.newBuilder()
+                            .setLevel(level + depth)
+                            .setIndex(child.getKey())
+                            .setHash(ByteString.copyFrom(child.getValue())));
+            }
+
+            // Send a single response through the stream.
+            responseObserver.onNext(builder.build());
+            // Notify the client that the operation has been completed.
+            responseObserver.onCompleted();
+
+        } catch (NoSuchCameraNameException e) {
+            responseObserver.onError(NOT_FOUND.withDescription(e.getMessage()).asRuntimeException());
+        } catch (CameraNameNullException e) {
+            responseObserver.onError(INVALID_ARGUMENT.withDescription(e.getMessage()).asRuntimeException());
+        }
+    }
+
+    @Override
+    public void merkleObservations(MerkleRequest request, StreamObserver<ReportRequest> responseObserver) {
+        try {
+            Camera camera = silo.getCameraByName(request.getCamName());
+            ReportRequest.Builder builder = ReportRequest.newBuilder().setCamName(camera.getName());
+
+            //requested node indexes by level
+            Map<Integer, Set<Long>> ranges = new HashMap<>();
+            for (MerkleNode node : request.getNodesList())
+                ranges.computeIfAbsent(node.getLevel(), level -> new HashSet<>()).add(node.getIndex());
+
+            for (Observation o : camera.getObservations()) {
+                long bucket = MerkleTree.bucketOf(o.getDateTime());
+                for (Map.Entry<Integer, Set<Long>> range : ranges.entrySet()) {
+                    if (range.getValue().contains(bucket >> (MerkleTree.DEPTH - range.getKey()))) {
+                        builder.addObservation(ObservationMessage.newBuilder()
+                                .setId(o.getId())
+                                .setType(o.getType())
+                                .setDatetime(o.getDateTime().format(Silo.formatter))
+                                .setCamName(o.getCamName()));
+                        break;
+                    }
+                }
+            }
+
+            // Send a single response through the stream.
+            responseObserver.onNext(builder.build());
+            // Notify the client that the operation has been completed.
+            responseObserver.onCompleted();
+
+        } catch (NoSuchCameraNameException e) {
+            responseObserver.onError(NOT_FOUND.withDescription(e.getMessage()).asRuntimeException());
+        } catch (CameraNameNullException e) {
+            responseObserver.onError(INVALID_ARGUMENT.withDescription(e.getMessage()).asRuntimeException());
+        }
+    }
+
+    @Override
+    public void controlLog(ControlLogRequest request, StreamObserver<GossipRequest> responseObserver) {
+        ServerRequestHandler handler = this.serverRequestHandler;
+        GossipRequest.Builder builder = GossipRequest.newBuilder();
+
+        //nothing to send when the replica asking holds the same operations
+        if (request.getDigest() != handler.getControlDigest() || request.getCount() != handler.getControlCount()) {
+            RecordCodec codec = new RecordCodec();
+            for (LogRecord record : handler.getControlLog())
+                builder.addLog(codec.encode(record));
+            builder.putAllCameras(codec.takeNewCameras());
+        }
+
+        // Send a single response through the stream.
+        responseObserver.onNext(builder.build());
         // Notify the client that the operation has been completed.
         responseObserver.onCompleted();
     }
 
+    //applies the control operations of a peer this replica missed, in the peer's order, returns how many
+    //a peer that has not seen this replica's last clear is behind, it gets the clear from this replica instead
+    public int repairControl(GossipRequest peerLog) {
+        if (peerLog.getLogCount() == 0)
+            return 0;
+
+        RecordCodec codec = new RecordCodec();
+        codec.addCameras(peerLog.getCamerasMap());
+        List<LogRecord> records = new ArrayList<>(peerLog.getLogCount());
+        try {
+            for (LogRecordsRequest lrr : peerLog.getLogList())
+                records.add(codec.decode(lrr));
+        } catch (InvalidGossipRecordException e) {
+            System.out.println("Invalid control operation from peer: " + e.getMessage());
+            return 0;
+        }
+
+        return this.applier.submit(() -> {
+            String lastClear = this.serverRequestHandler.getLastClear();
+            if (lastClear != null && records.stream().noneMatch(record -> record.getId().equals(lastClear)))
+                return 0;
+
+            int missing = 0;
+            for (LogRecord record : records) {
+                //a clear replaces the request handler, so it is read again for every record
+                if (this.serverRequestHandler.isExecuted(record.getId()))
+                    continue;
+                applyGossip(new GossipMessage(List.of(record), Map.of()));
+                missing++;
+            }
+            return missing;
+        }).join();
+    }
 
     //CamJoin domain logic
     public boolean camJoinAux(ClientRequest request, StreamObserver<ClientResponse> responseObserver) {
@@ -123,11 +442,17 @@ public class SiloServiceImp extends SiloOperationsServiceGrpc.SiloOperationsServ
 
     @Override
     public void camJoin(ClientRequest request, StreamObserver<ClientResponse> responseObserver) {
+        if (rejectUpdate(responseObserver))
+            return;
+        this.applier.execute(() -> applyCamJoin(request, responseObserver));
+    }
+
+    private void applyCamJoin(ClientRequest request, StreamObserver<ClientResponse> responseObserver) {
 
 
         LogRecord logRecord;
         try {
-            logRecord = this.serverRequestHandler.processUpdateRequest("CamJoin", request, responseObserver);
+            logRecord = this.serverRequestHandler.processUpdateRequest(OpCode.CAM_JOIN, request, responseObserver);
 
 
             //implements domain logic
@@ -144,6 +469,7 @@ public class SiloServiceImp extends SiloOperationsServiceGrpc.SiloOperationsServ
             responseObserver.onCompleted();
 
             this.serverRequestHandler.addRecordToLog(logRecord);
+            updatesPending();
 
             this.serverRequestHandler.updateReplicaState(logRecord);
 
@@ -187,9 +513,15 @@ public class SiloServiceImp extends SiloOperationsServiceGrpc.SiloOperationsServ
 
     @Override
     public void report(ClientRequest request, StreamObserver<ClientResponse> responseObserver) {
+        if (rejectUpdate(responseObserver))
+            return;
+        this.applier.execute(() -> applyReport(request, responseObserver));
+    }
+
+    private void applyReport(ClientRequest request, StreamObserver<ClientResponse> responseObserver) {
         try {
 
-            LogRecord logRecord = this.serverRequestHandler.processUpdateRequest("Report", request, responseObserver);
+            LogRecord logRecord = this.serverRequestHandler.processUpdateRequest(OpCode.REPORT, request, responseObserver);
 
 
             //Implements domain logic
@@ -209,6 +541,7 @@ public class SiloServiceImp extends SiloOperationsServiceGrpc.SiloOperationsServ
             responseObserver.onCompleted();
 
             this.serverRequestHandler.addRecordToLog(logRecord);
+            updatesPending();
 
             this.serverRequestHandler.updateReplicaState(logRecord);
 
@@ -219,8 +552,93 @@ public class SiloServiceImp extends SiloOperationsServiceGrpc.SiloOperationsServ
     }
 
 
+    //every message is applied as a report, the answer carries the timestamps of all of them
+    //the first failed report fails the whole stream once the client closes it
+    @Override
+    public StreamObserver<ClientRequest> reportStream(StreamObserver<ClientResponse> responseObserver) {
+        //reports are read as earlier ones are applied, so a fast client cannot grow the apply queue
+        ServerCallStreamObserver<ClientResponse> call = (ServerCallStreamObserver<ClientResponse>) responseObserver;
+        call.disableAutoInboundFlowControl();
+        call.request(REPORT_STREAM_WINDOW);
+
+        return new StreamObserver<>() {
+            private final Map<Integer, Integer> responseTS = new HashMap<>();
+            //reports not answered yet, plus one while the stream is open
+            private final AtomicInteger pending = new AtomicInteger(1);
+            private final AtomicReference<Throwable> error = new AtomicReference<>();
+            private volatile boolean cancelled = false;
+
+            @Override
+            public void onNext(ClientRequest request) {
+                if (follower) {
+                    error.compareAndSet(null, FAILED_PRECONDITION.withDescription("Follower replicas only serve queries").asRuntimeException());
+                    call.request(1);
+                    return;
+                }
+                pending.incrementAndGet();
+                applier.execute(() -> applyReport(request, new StreamObserver<>() {
+                    @Override
+                    public void onNext(ClientResponse response) {
+                        synchronized (responseTS) {
+                            for (Map.Entry<Integer, Integer> entry : response.getResponseTSMap().entrySet())
+                                responseTS.merge(entry.getKey(), entry.getValue(), Integer::max);
+                        }
+                    }
+
+                    @Override
+                    public void onError(Throwable t) {
+                        //a report resent after a failed stream was already applied
+                        if (Status.fromThrowable(t).getCode() != Status.Code.ALREADY_EXISTS)
+                            error.compareAndSet(null, t);
+                        call.request(1);
+                        done();
+                    }
+
+                    @Override
+                    public void onCompleted() {
+                        call.request(1);
+                        done();
+                    }
+                }));
+            }
+
+            @Override
+            public void onError(Throwable t) {
+                //client went away, reports already received are still applied but nobody is answered
+                cancelled = true;
+                pending.decrementAndGet();
+            }
+
+            @Override
+            public void onCompleted() {
+                done();
+            }
+
+            private void done() {
+                if (pending.decrementAndGet() != 0 || cancelled)
+                    return;
+                if (error.get() != null) {
+                    responseObserver.onError(error.get());
+                    return;
+                }
+                ClientResponse clientResponse;
+                synchronized (responseTS) {
+                    clientResponse = ClientResponse.newBuilder().setUpdateResponse(UpdateResponse.newBuilder().build()).putAllResponseTS(responseTS).build();
+                }
+                responseObserver.onNext(clientResponse);
+                responseObserver.onCompleted();
+            }
+        };
+    }
+
     @Override
     public void camInfo(ClientRequest request, StreamObserver<ClientResponse> responseObserver) {
+        //checked before reading, so the flag never claims more than the result has
+        boolean stale = isStale(request);
+        if (stale && !request.getAllowStale()) {
+            answerStale(responseObserver);
+            return;
+        }
         try {
             String camName = request.getCamInfoRequest().getCamName();
             Camera camera = silo.getCameraByName(camName);
@@ -230,7 +648,7 @@ public class SiloServiceImp extends SiloOperationsServiceGrpc.SiloOperationsServ
                     .setLongitude(camera.getLog())
                     .build();
 
-            ClientResponse clientResponse = ClientResponse.newBuilder().setCamInfoResponse(response).putAllResponseTS(this.serverRequestHandler.getValueTS()).build();
+            ClientResponse clientResponse = ClientResponse.newBuilder().setCamInfoResponse(response).putAllResponseTS(this.serverRequestHandler.getValueTS()).setStale(stale).build();
 
             // Send a single response through the stream.
             responseObserver.onNext(clientResponse);
@@ -248,6 +666,12 @@ public class SiloServiceImp extends SiloOperationsServiceGrpc.SiloOperationsServ
 
     @Override
     public void track(ClientRequest request, StreamObserver<ClientResponse> responseObserver) {
+        //checked before reading, so the flag never claims more than the result has
+        boolean stale = isStale(request);
+        if (stale && !request.getAllowStale()) {
+            answerStale(responseObserver);
+            return;
+        }
         try {
 
             String type = request.getTrackRequest().getType();
@@ -279,7 +703,7 @@ public class SiloServiceImp extends SiloOperationsServiceGrpc.SiloOperationsServ
 
             System.out.println("Sending most recent observation of object with id:" + id + " and type:" + type + "...");
 
-            ClientResponse clientResponse = ClientResponse.newBuilder().putAllResponseTS(this.serverRequestHandler.getValueTS()).setTrackResponse(response).build();
+            ClientResponse clientResponse = ClientResponse.newBuilder().putAllResponseTS(this.serverRequestHandler.getValueTS()).setTrackResponse(response).setStale(stale).build();
 
 
             // Send a single response through the stream.
@@ -300,6 +724,12 @@ public class SiloServiceImp extends SiloOperationsServiceGrpc.SiloOperationsServ
 
     @Override
     public void trackMatch(ClientRequest request, StreamObserver<ClientResponse> responseObserver) {
+        //checked before reading, so the flag never claims more than the result has
+        boolean stale = isStale(request);
+        if (stale && !request.getAllowStale()) {
+            answerStale(responseObserver);
+            return;
+        }
 
 
         try {
@@ -337,7 +767,7 @@ public class SiloServiceImp extends SiloOperationsServiceGrpc.SiloOperationsServ
 
             System.out.println("Sending most recent observations of objects with partialid:" + id + " and type:" + type + "...");
 
-            ClientResponse clientResponse = ClientResponse.newBuilder().putAllResponseTS(this.serverRequestHandler.getValueTS()).setTraceResponse(response).build();
+            ClientResponse clientResponse = ClientResponse.newBuilder().putAllResponseTS(this.serverRequestHandler.getValueTS()).setTraceResponse(response).setStale(stale).build();
 
 
             // Send a single response through the stream.
@@ -359,6 +789,12 @@ public class SiloServiceImp extends SiloOperationsServiceGrpc.SiloOperationsServ
 
     @Override
     public void trace(ClientRequest request, StreamObserver<ClientResponse> responseObserver) {
+        //checked before reading, so the flag never claims more than the result has
+        boolean stale = isStale(request);
+        if (stale && !request.getAllowStale()) {
+            answerStale(responseObserver);
+            return;
+        }
 
         try {
 
@@ -393,7 +829,7 @@ public class SiloServiceImp extends SiloOperationsServiceGrpc.SiloOperationsServ
 
             System.out.println("Sending trace path of object with id:" + id + " and type:" + type + "...");
 
-            ClientResponse clientResponse = ClientResponse.newBuilder().putAllResponseTS(this.serverRequestHandler.getValueTS()).setTraceResponse(response).build();
+            ClientResponse clientResponse = ClientResponse.newBuilder().putAllResponseTS(this.serverRequestHandler.getValueTS()).setTraceResponse(response).setStale(stale).build();
 
             // Send a single response through the stream.
             responseObserver.onNext(clientResponse);
@@ -411,6 +847,81 @@ public class SiloServiceImp extends SiloOperationsServiceGrpc.SiloOperationsServ
 
     }
 
+    @Override
+    public void batchTrack(BatchQueryRequest request, StreamObserver<BatchQueryResponse> responseObserver) {
+        batchQuery(request, responseObserver, false);
+    }
+
+    @Override
+    public void batchTrace(BatchQueryRequest request, StreamObserver<BatchQueryResponse> responseObserver) {
+        batchQuery(request, responseObserver, true);
+    }
+
+    //every key is read on the apply thread in one go, so no update lands between two of them
+    //results are streamed one per key, an object that cannot be found fails only its own result
+    private void batchQuery(BatchQueryRequest request, StreamObserver<BatchQueryResponse> responseObserver, boolean trace) {
+        //checked before reading, so the flag never claims more than the result has
+        boolean stale = !this.serverRequestHandler.coversTimestamp(request.getPrevTSMap());
+        if (stale && !request.getAllowStale()) {
+            responseObserver.onNext(BatchQueryResponse.newBuilder().setStale(true).putAllResponseTS(this.serverRequestHandler.getValueTS()).build());
+            responseObserver.onCompleted();
+            return;
+        }
+
+        this.applier.submit(() -> {
+            Map<Integer, Integer> valueTS = new HashMap<>(this.serverRequestHandler.getValueTS());
+            List<BatchQueryResponse> results = new ArrayList<>();
+            for (ObjectKey key : request.getKeyList())
+                results.add(batchResult(key, trace, valueTS, stale));
+            return results;
+        }).whenComplete((results, t) -> {
+            if (t != null) {
+                responseObserver.onError(INTERNAL.withDescription(t.getMessage()).asRuntimeException());
+                return;
+            }
+            System.out.println("Sending " + results.size() + (trace ? " trace paths" : " observations") + "...");
+            for (BatchQueryResponse result : results)
+                responseObserver.onNext(result);
+            responseObserver.onCompleted();
+        });
+    }
+
+    private BatchQueryResponse batchResult(ObjectKey key, boolean trace, Map<Integer, Integer> valueTS, boolean stale) {
+        BatchQueryResponse.Builder builder = BatchQueryResponse.newBuilder().setKey(key).putAllResponseTS(valueTS).setStale(stale);
+        try {
+            checkType(key.getType());
+
+            if (trace) {
+                TraceResponse.Builder traceResponse = TraceResponse.newBuilder();
+                for (Observation o : silo.traceObject(key.getType(), key.getId()))
+                    traceResponse.addObservation(toObservationMessage(o));
+                builder.setTrace(traceResponse);
+            } else
+                builder.setTrack(TrackResponse.newBuilder().setObservation(toObservationMessage(silo.trackObject(key.getType(), key.getId()))));
+
+        } catch (CameraNameNullException |
+                InvalidIdException |
+                InvalidTypeException |
+                NoSuchObjectException |
+                NoSuchCameraNameException e) {
+            builder.setError(e.getMessage());
+        }
+        return builder.build();
+    }
+
+    private ObservationMessage toObservationMessage(Observation o) throws NoSuchCameraNameException, CameraNameNullException {
+        Camera camera = silo.getCameraByName(o.getCamName());
+        CamInfoResponse camInfo = CamInfoResponse.newBuilder().setLatitude(camera.getLat()).setLongitude(camera.getLog()).build();
+
+        return ObservationMessage.newBuilder()
+                .setId(o.getId())
+                .setType(o.getType())
+                .setDatetime(o.getDateTime().format(Silo.formatter))
+                .setCamName(o.getCamName())
+                .setCords(camInfo)
+                .build();
+    }
+
 
     @Override
     public void ctrlPing(ClientRequest request, StreamObserver<ClientResponse> responseObserver) {
@@ -432,16 +943,25 @@ public class SiloServiceImp extends SiloOperationsServiceGrpc.SiloOperationsServ
         //Clears server info
         this.silo = new Silo();
         this.serverRequestHandler = new ServerRequestHandler(this.replicaNumber);
+        //runs on the apply thread, which outlives the clear, the shard workers do not
+        this.shardedApplier.close();
+        this.shardedApplier = new ShardedApplier();
 
         System.out.println("System state cleared");
     }
 
     @Override
     public void ctrlClear(ClientRequest request, StreamObserver<ClientResponse> responseObserver) {
+        if (rejectUpdate(responseObserver))
+            return;
+        this.applier.execute(() -> applyCtrlClear(request, responseObserver));
+    }
+
+    private void applyCtrlClear(ClientRequest request, StreamObserver<ClientResponse> responseObserver) {
 
         LogRecord logRecord = null;
         try {
-            logRecord = this.serverRequestHandler.processUpdateRequest("CtrlClear", request, responseObserver);
+            logRecord = this.serverRequestHandler.processUpdateRequest(OpCode.CTRL_CLEAR, request, responseObserver);
 
 
             //silo.clearData();
@@ -458,6 +978,7 @@ public class SiloServiceImp extends SiloOperationsServiceGrpc.SiloOperationsServ
             responseObserver.onCompleted();
 
             this.serverRequestHandler.addRecordToLog(logRecord);
+            updatesPending();
 
             this.serverRequestHandler.updateReplicaState(logRecord);
         } catch (DuplicateOperationException e) {
@@ -472,10 +993,16 @@ public class SiloServiceImp extends SiloOperationsServiceGrpc.SiloOperationsServ
 
     @Override
     public void ctrlInit(ClientRequest request, StreamObserver<ClientResponse> responseObserver) {
+        if (rejectUpdate(responseObserver))
+            return;
+        this.applier.execute(() -> applyCtrlInit(request, responseObserver));
+    }
+
+    private void applyCtrlInit(ClientRequest request, StreamObserver<ClientResponse> responseObserver) {
 
         LogRecord logRecord = null;
         try {
-            logRecord = this.serverRequestHandler.processUpdateRequest("CtrlInit", request, responseObserver);
+            logRecord = this.serverRequestHandler.processUpdateRequest(OpCode.CTRL_INIT, request, responseObserver);
 
 
             ctrlInitAux();
@@ -490,6 +1017,7 @@ public class SiloServiceImp extends SiloOperationsServiceGrpc.SiloOperationsServ
             responseObserver.onCompleted();
 
             this.serverRequestHandler.addRecordToLog(logRecord);
+            updatesPending();
 
             this.serverRequestHandler.updateReplicaState(logRecord);
         } catch (DuplicateOperationException e) {
@@ -518,28 +1046,64 @@ public class SiloServiceImp extends SiloOperationsServiceGrpc.SiloOperationsServ
         }
     }
 
-    public GossipRequest buildGossipRequest() {
-        return this.serverRequestHandler.buildGossipRequest();
+    //lets the gossip scheduler bring the next round forward
+    private void updatesPending() {
+        if (this.gossipScheduler != null)
+            this.gossipScheduler.updatesPending(this.serverRequestHandler.getPendingUpdates());
     }
 
-    //handler to successful gossip
-    public void gossipHandler(List<String> missedReplicas) {
+    public void setGossipScheduler(GossipScheduler gossipScheduler) {
+        this.gossipScheduler = gossipScheduler;
+    }
 
+    //moves the executed updates to the gossip backlog before a gossip round
+    public void prepareGossip() {
+        this.applier.submit(() -> this.serverRequestHandler.prepareGossip()).join();
+    }
 
-        if (missedReplicas.size() == 0)
-            this.serverRequestHandler.successfulGossipHandler();
+    //stops the apply thread and the shard workers once the server is terminated
+    public void close() {
+        this.applier.close();
+        this.shardedApplier.close();
+    }
 
-        else
-            this.serverRequestHandler.missedGossipHandler(missedReplicas);
+    public UpdateApplier getUpdateApplier() {
+        return this.applier;
+    }
+
+    //a read from a client ahead of the replica gets a stale status without the result, unless the client accepts stale data
+    private void answerStale(StreamObserver<ClientResponse> responseObserver) {
+        responseObserver.onNext(ClientResponse.newBuilder().setStale(true).putAllResponseTS(this.serverRequestHandler.getValueTS()).build());
+        responseObserver.onCompleted();
+    }
+
+    private boolean isStale(ClientRequest request) {
+        return !this.serverRequestHandler.coversTimestamp(request.getPrevTSMap());
+    }
+
+    //updates are only accepted by replicas, followers learn them through gossip
+    private boolean rejectUpdate(StreamObserver<ClientResponse> responseObserver) {
+        if (!this.follower)
+            return false;
+        responseObserver.onError(FAILED_PRECONDITION.withDescription("Follower replicas only serve queries").asRuntimeException());
+        return true;
+    }
+
+    public boolean isFollower() {
+        return this.follower;
+    }
 
+    //handler to the end of a gossip round
+    public void gossipHandler(Collection<String> replicas) {
+        this.serverRequestHandler.gossipRoundHandler(replicas);
     }
 
-    List<String> getMissingReplicas() {
-        return this.serverRequestHandler.getMissingReplicas();
+    public void expireGossip(int rounds) {
+        this.serverRequestHandler.expireGossip(rounds);
     }
 
-    public GossipRequest getBackupGossip() {
-        return this.serverRequestHandler.getBackupGossip().build();
+    public ServerRequestHandler getServerRequestHandler() {
+        return this.serverRequestHandler;
     }
 
 }
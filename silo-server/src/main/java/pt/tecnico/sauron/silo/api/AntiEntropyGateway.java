@@ -0,0 +1,149 @@
+package pt.tecnico.sauron.silo.api;
+
+import com.google.protobuf.ByteString;
+import io.grpc.ManagedChannel;
+import io.grpc.ManagedChannelBuilder;
+import pt.tecnico.sauron.silo.domain.Camera;
+import pt.tecnico.sauron.silo.domain.MerkleTree;
+import pt.tecnico.sauron.silo.domain.Observation;
+import pt.tecnico.sauron.silo.domain.Silo;
+import pt.tecnico.sauron.silo.exceptions.*;
+import pt.tecnico.sauron.silo.grpc.*;
+
+import java.time.LocalDateTime;
+import java.util.*;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
+
+public class AntiEntropyGateway implements AutoCloseable {
+
+    //levels of the tree walked down on each request
+    public static final int WALK_STEP = 4;
+
+    //nodes sent on a single request
+    public static final int MAX_NODES = 1024;
+
+    public static final long DEFAULT_DEADLINE = 10000;
+
+    private ManagedChannel channel;
+    private SiloOperationsServiceGrpc.SiloOperationsServiceBlockingStub stub;
+    private String target;
+
+    public AntiEntropyGateway(String target) {
+        this.target = target;
+        this.channel = ManagedChannelBuilder.forTarget(target).usePlaintext().build();
+        this.stub = SiloOperationsServiceGrpc.newBlockingStub(this.channel);
+    }
+
+    //pulls from the replica every observation the silo is missing, returns how many were repaired
+    //changes to the silo are made through the applier
+    public int repair(Silo silo, Executor applier) {
+        int repaired = 0;
+        MerkleRootsResponse roots = stub().merkleRoots(EmptyRequest.newBuilder().build());
+
+        for (CameraRoot root : roots.getRootList()) {
+            Camera camera = CompletableFuture.supplyAsync(() -> localCamera(silo, root), applier).join();
+            if (camera == null)
+                continue;
+            if (root.getHash().equals(ByteString.copyFrom(camera.getMerkleTree().getHash(0, 0))))
+                continue;
+
+            System.out.println("Camera " + root.getCamName() + " differs from replica at " + this.target + ", repairing...");
+            List<Observation> missing = pullObservations(camera, findDifferingLeaves(camera));
+            CompletableFuture.runAsync(() -> missing.forEach(camera::addObservation), applier).join();
+            repaired += missing.size();
+        }
+        return repaired;
+    }
+
+    //control operations of the replica, empty when they match the ones of the handler
+    public GossipRequest pullControlLog(ServerRequestHandler handler) {
+        return stub().controlLog(ControlLogRequest.newBuilder()
+                .setDigest(handler.getControlDigest())
+                .setCount(handler.getControlCount())
+                .build());
+    }
+
+    private Camera localCamera(Silo silo, CameraRoot root) {
+        try {
+            if (!silo.checkIfCameraExists(root.getCamName()))
+                silo.addCamera(new Camera(root.getCamName(), root.getLatitude(), root.getLongitude()));
+            return silo.getCameraByName(root.getCamName());
+        } catch (CameraNameNotUniqueException | CameraNameInvalidException | CameraNameNullException |
+                InvalidCoordinatesException | NoSuchCameraNameException e) {
+            System.out.println("Could not repair camera " + root.getCamName() + ": " + e.getMessage());
+            return null;
+        }
+    }
+
+    //walks down from the root, only following the nodes whose hashes differ
+    private List<MerkleNode> findDifferingLeaves(Camera camera) {
+        MerkleTree tree = camera.getMerkleTree();
+        List<MerkleNode> frontier = List.of(MerkleNode.newBuilder().setLevel(0).setIndex(0).build());
+        int level = 0;
+
+        while (!frontier.isEmpty() && level < MerkleTree.DEPTH) {
+            int step = Math.min(WALK_STEP, MerkleTree.DEPTH - level);
+            List<MerkleNode> next = new ArrayList<>();
+
+            for (int i = 0; i < frontier.size(); i += MAX_NODES) {
+                MerkleRequest request = MerkleRequest.newBuilder()
+                        .setCamName(camera.getName())
+                        .setDepth(step)
+                        .addAllNodes(frontier.subList(i, Math.min(i + MAX_NODES, frontier.size())))
+                        .build();
+
+                for (MerkleNode node : stub().merkleChildren(request).getNodesList()) {
+                    if (!node.getHash().equals(ByteString.copyFrom(tree.getHash(node.getLevel(), node.getIndex()))))
+                        next.add(node);
+                }
+            }
+            frontier = next;
+            level += step;
+        }
+        return frontier;
+    }
+
+    //transfers the observations under the differing leaves, returns the ones not yet in the camera
+    private List<Observation> pullObservations(Camera camera, List<MerkleNode> leaves) {
+        Set<Long> buckets = new HashSet<>();
+        for (MerkleNode leaf : leaves)
+            buckets.add(leaf.getIndex());
+
+        Set<String> known = new HashSet<>();
+        for (Observation o : camera.getObservations()) {
+            if (buckets.contains(MerkleTree.bucketOf(o.getDateTime())))
+                known.add(MerkleTree.keyOf(o));
+        }
+
+        List<Observation> missing = new ArrayList<>();
+        for (int i = 0; i < leaves.size(); i += MAX_NODES) {
+            MerkleRequest request = MerkleRequest.newBuilder()
+                    .setCamName(camera.getName())
+                    .addAllNodes(leaves.subList(i, Math.min(i + MAX_NODES, leaves.size())))
+                    .build();
+
+            for (ObservationMessage om : stub().merkleObservations(request).getObservationList()) {
+                try {
+                    Observation observation = new Observation(om.getType(), om.getId(),
+                            LocalDateTime.parse(om.getDatetime(), Silo.formatter), camera.getName());
+                    if (known.add(MerkleTree.keyOf(observation)))
+                        missing.add(observation);
+                } catch (InvalidDateException | InvalidIdException e) {
+                    System.out.println("Skipping invalid observation: " + e.getMessage());
+                }
+            }
+        }
+        return missing;
+    }
+
+    private SiloOperationsServiceGrpc.SiloOperationsServiceBlockingStub stub() {
+        return this.stub.withDeadlineAfter(DEFAULT_DEADLINE, TimeUnit.MILLISECONDS);
+    }
+
+    @Override
+    public void close() {
+        this.channel.shutdownNow();
+    }
+}
@@ -0,0 +1,106 @@
+package pt.tecnico.sauron.silo.api;
+
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.function.BooleanSupplier;
+
+public class GossipScheduler implements AutoCloseable {
+
+    //pending updates that trigger a gossip round right away
+    public static final int DEFAULT_PENDING_THRESHOLD = 500;
+
+    //maximum time an update waits in the log before a gossip round is triggered
+    public static final long DEFAULT_MAX_PENDING_AGE = 5000;
+
+    //idle rounds back off up to this many times the base period
+    public static final int MAX_BACKOFF_FACTOR = 8;
+
+    //minimum time between the end of a round and the start of the next one
+    public static final long MIN_ROUND_SPACING = 250;
+
+    private final ScheduledExecutorService executor = Executors.newSingleThreadScheduledExecutor();
+
+    //runs a gossip round, returns true if there was something to send
+    private final BooleanSupplier round;
+
+    private final long basePeriod;
+    private final long maxPeriod;
+    private final int pendingThreshold;
+    private final long maxPendingAge;
+
+    private long currentPeriod;
+    private long lastRoundEnd = 0;
+    private long firstPendingAt = 0;
+    private long nextRoundAt = Long.MAX_VALUE;
+    private long generation = 0;
+
+    public GossipScheduler(BooleanSupplier round, long basePeriod) {
+        this(round, basePeriod, DEFAULT_PENDING_THRESHOLD, Math.min(basePeriod, DEFAULT_MAX_PENDING_AGE));
+    }
+
+    public GossipScheduler(BooleanSupplier round, long basePeriod, int pendingThreshold, long maxPendingAge) {
+        this.round = round;
+        this.basePeriod = basePeriod;
+        this.maxPeriod = basePeriod * MAX_BACKOFF_FACTOR;
+        this.pendingThreshold = pendingThreshold;
+        this.maxPendingAge = maxPendingAge;
+        this.currentPeriod = basePeriod;
+    }
+
+    public synchronized void start() {
+        schedule(System.currentTimeMillis() + this.currentPeriod);
+    }
+
+    //called whenever updates are added to the log, brings the next round forward if needed
+    public synchronized void updatesPending(int pending) {
+        long now = System.currentTimeMillis();
+        if (this.firstPendingAt == 0)
+            this.firstPendingAt = now;
+
+        if (pending >= this.pendingThreshold)
+            schedule(now);
+        else
+            schedule(this.firstPendingAt + this.maxPendingAge);
+    }
+
+    //schedules a round at the given time, unless one is already due before it
+    private void schedule(long at) {
+        at = Math.max(at, this.lastRoundEnd + MIN_ROUND_SPACING);
+        if (at >= this.nextRoundAt)
+            return;
+
+        //a newer schedule supersedes the previous one
+        long roundGeneration = ++this.generation;
+        this.nextRoundAt = at;
+        this.executor.schedule(() -> runRound(roundGeneration), Math.max(0, at - System.currentTimeMillis()), TimeUnit.MILLISECONDS);
+    }
+
+    private void runRound(long roundGeneration) {
+        synchronized (this) {
+            if (roundGeneration != this.generation)
+                return;
+            this.nextRoundAt = Long.MAX_VALUE;
+            this.firstPendingAt = 0;
+        }
+
+        boolean busy = false;
+        try {
+            busy = this.round.getAsBoolean();
+        } catch (RuntimeException e) {
+            e.printStackTrace();
+        }
+
+        synchronized (this) {
+            this.lastRoundEnd = System.currentTimeMillis();
+            //back off while there is nothing to send
+            this.currentPeriod = busy ? this.basePeriod : Math.min(this.currentPeriod * 2, this.maxPeriod);
+            schedule(this.lastRoundEnd + this.currentPeriod);
+        }
+    }
+
+    @Override
+    public void close() {
+        this.executor.shutdownNow();
+    }
+}
@@ -0,0 +1,129 @@
+package pt.tecnico.sauron.silo.api;
+
+import java.util.*;
+
+//chooses the replicas a replica gossips with on each round
+//ALL contacts every replica, RANDOM:k contacts k random replicas and RING:k contacts k replicas
+//ahead of it on the ring of replica numbers, at exponentially growing distances
+//outside ALL mode replicas relay the records they received from others
+public class GossipTopology {
+
+    public enum Mode {ALL, RANDOM, RING}
+
+    //replicas sending gossip to each follower
+    public static final int FOLLOWER_FEEDS = 2;
+
+    //rounds added on top of the expected dissemination time before a record is dropped
+    public static final int EXTRA_ROUNDS = 2;
+
+    private final Mode mode;
+    private final int fanout;
+    private final Random random = new Random();
+
+    public GossipTopology(Mode mode, int fanout) {
+        this.mode = mode;
+        this.fanout = fanout;
+    }
+
+    public static GossipTopology all() {
+        return new GossipTopology(Mode.ALL, 0);
+    }
+
+    //parses "all", "random:k" or "ring:k"
+    public static GossipTopology parse(String spec) {
+        String[] parts = spec.trim().split(":");
+        Mode mode = Mode.valueOf(parts[0].toUpperCase());
+        if (mode == Mode.ALL)
+            return all();
+
+        int fanout = parts.length > 1 ? Integer.parseInt(parts[1]) : 2;
+        if (fanout < 1)
+            throw new IllegalArgumentException("Gossip fan-out must be positive");
+        return new GossipTopology(mode, fanout);
+    }
+
+    public boolean isAll() {
+        return this.mode == Mode.ALL;
+    }
+
+    //replicas maps every registered replica number to its target, including this replica
+    public List<String> select(int replicaNumber, SortedMap<Integer, String> replicas) {
+        List<Integer> others = new ArrayList<>(replicas.keySet());
+        others.remove(Integer.valueOf(replicaNumber));
+
+        List<String> selected = new ArrayList<>();
+        switch (this.mode) {
+            case RANDOM:
+                Collections.shuffle(others, this.random);
+                for (Integer repN : others.subList(0, Math.min(this.fanout, others.size())))
+                    selected.add(replicas.get(repN));
+                break;
+            case RING:
+                List<Integer> ring = new ArrayList<>(replicas.keySet());
+                int position = ring.indexOf(replicaNumber);
+                for (int distance : ringDistances(ring.size())) {
+                    String target = replicas.get(ring.get(Math.floorMod(position + distance, ring.size())));
+                    if (!selected.contains(target))
+                        selected.add(target);
+                }
+                break;
+            default:
+                for (Integer repN : others)
+                    selected.add(replicas.get(repN));
+        }
+        return selected;
+    }
+
+    //followers fed by the replica, each follower gets gossip from FOLLOWER_FEEDS replicas picked by its id
+    public List<String> selectFollowers(int replicaNumber, SortedMap<Integer, String> replicas, SortedMap<Integer, String> followers) {
+        List<Integer> ring = new ArrayList<>(replicas.keySet());
+        List<String> selected = new ArrayList<>();
+        for (Map.Entry<Integer, String> follower : followers.entrySet()) {
+            for (int i = 0; i < Math.min(FOLLOWER_FEEDS, ring.size()); i++) {
+                if (ring.get(Math.floorMod(follower.getKey() + i, ring.size())) == replicaNumber)
+                    selected.add(follower.getValue());
+            }
+        }
+        return selected;
+    }
+
+    //rounds a relayed record is kept, long enough to reach every one of the given replicas
+    public int retainRounds(int replicas) {
+        if (replicas <= 1)
+            return EXTRA_ROUNDS;
+
+        if (this.mode == Mode.RING) {
+            //every distance is a sum of at most fanout * (base - 1) hops
+            return this.fanout * (ringBase(replicas) - 1) + EXTRA_ROUNDS;
+        }
+        //each round multiplies the replicas holding a record by about fanout + 1
+        return (int) Math.ceil(Math.log(replicas) / Math.log(this.fanout + 1)) + EXTRA_ROUNDS;
+    }
+
+    //distances 1, b, b^2, ... b^(fanout-1), with b chosen so that b^fanout covers the ring
+    private List<Integer> ringDistances(int size) {
+        List<Integer> distances = new ArrayList<>();
+        if (size <= 1)
+            return distances;
+
+        int base = ringBase(size);
+        long distance = 1;
+        for (int i = 0; i < this.fanout && distance < size; i++) {
+            distances.add((int) distance);
+            distance *= base;
+        }
+        return distances;
+    }
+
+    private int ringBase(int size) {
+        int base = 2;
+        while (Math.pow(base, this.fanout) < size)
+            base++;
+        return base;
+    }
+
+    @Override
+    public String toString() {
+        return isAll() ? "all" : this.mode.name().toLowerCase() + ":" + this.fanout;
+    }
+}
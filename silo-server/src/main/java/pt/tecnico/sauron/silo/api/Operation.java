@@ -1,35 +1,108 @@
 package pt.tecnico.sauron.silo.api;
 
 import io.grpc.stub.StreamObserver;
-import pt.tecnico.sauron.silo.grpc.ClientRequest;
-import pt.tecnico.sauron.silo.grpc.ClientResponse;
+import pt.tecnico.sauron.silo.domain.Silo;
+import pt.tecnico.sauron.silo.grpc.*;
+
+import java.time.LocalDateTime;
+import java.time.ZoneOffset;
 
 public class Operation extends GossipMessage {
 
-    String operation;
+    OpCode operation;
+    String camName;
     ClientRequest request;
+    //gossip form of the operation, without the record's ids and timestamps
+    LogRecordsRequest payload;
     StreamObserver<ClientResponse> observer;
 
-    public Operation(String operation, ClientRequest request) {
+    public Operation(OpCode operation, ClientRequest request, StreamObserver<ClientResponse> observer) {
         this.operation = operation;
         this.request = request;
+        this.observer = observer;
+
+        if (operation == OpCode.CAM_JOIN)
+            this.camName = request.getCamJoinRequest().getCamName();
+        else if (operation == OpCode.REPORT)
+            this.camName = request.getReportRequest().getCamName();
     }
 
-    public Operation(String operation, ClientRequest request, StreamObserver<ClientResponse> observer) {
+    //operation received through gossip, the request is only rebuilt when applied
+    public Operation(OpCode operation, String camName, LogRecordsRequest payload) {
         this.operation = operation;
-        this.request = request;
-        this.observer = observer;
+        this.camName = camName;
+        this.payload = payload;
     }
 
-    public String getOperation() {
+    public OpCode getOperation() {
         return operation;
     }
 
-    public ClientRequest getRequest() {
-        return request;
+    public String getCamName() {
+        return camName;
+    }
+
+    public synchronized ClientRequest getRequest() {
+        if (this.request == null)
+            this.request = buildRequest();
+        return this.request;
+    }
+
+    public synchronized LogRecordsRequest getPayload() {
+        if (this.payload == null)
+            this.payload = buildPayload();
+        return this.payload;
     }
 
     public StreamObserver<ClientResponse> getObserver() {
         return observer;
     }
+
+    private ClientRequest buildRequest() {
+        ClientRequest.Builder builder = ClientRequest.newBuilder();
+        switch (this.operation) {
+            case CAM_JOIN:
+                builder.setCamJoinRequest(CamJoinRequest.newBuilder()
+                        .setCamName(this.camName)
+                        .setLatitude(this.payload.getLatitude())
+                        .setLongitude(this.payload.getLongitude()));
+                break;
+            case REPORT:
+                ReportRequest.Builder report = ReportRequest.newBuilder().setCamName(this.camName);
+                for (CompactObservation co : this.payload.getObservationList()) {
+                    report.addObservation(ObservationMessage.newBuilder()
+                            .setType(co.getType())
+                            .setId(co.getId())
+                            .setDatetime(LocalDateTime.ofEpochSecond(co.getEpochSecond(), 0, ZoneOffset.UTC).format(Silo.formatter))
+                            .setCamName(this.camName));
+                }
+                builder.setReportRequest(report);
+                break;
+            default:
+                builder.setEmptyRequest(EmptyRequest.newBuilder());
+        }
+        return builder.build();
+    }
+
+    private LogRecordsRequest buildPayload() {
+        LogRecordsRequest.Builder builder = LogRecordsRequest.newBuilder().setOp(this.operation);
+        switch (this.operation) {
+            case CAM_JOIN:
+                builder.setLatitude(this.request.getCamJoinRequest().getLatitude())
+                        .setLongitude(this.request.getCamJoinRequest().getLongitude());
+                break;
+            case REPORT:
+                //only reports that were applied reach the log, so every date is valid
+                for (ObservationMessage om : this.request.getReportRequest().getObservationList()) {
+                    builder.addObservation(CompactObservation.newBuilder()
+                            .setType(om.getType())
+                            .setId(om.getId())
+                            .setEpochSecond(LocalDateTime.parse(om.getDatetime(), Silo.formatter).toEpochSecond(ZoneOffset.UTC)));
+                }
+                break;
+            default:
+                break;
+        }
+        return builder.build();
+    }
 }
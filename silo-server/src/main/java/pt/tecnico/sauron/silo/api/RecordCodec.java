@@ -0,0 +1,135 @@
+package pt.tecnico.sauron.silo.api;
+
+import com.google.protobuf.ByteString;
+import pt.tecnico.sauron.silo.exceptions.InvalidGossipRecordException;
+import pt.tecnico.sauron.silo.grpc.LogRecordsRequest;
+import pt.tecnico.sauron.silo.grpc.OpCode;
+
+import java.nio.ByteBuffer;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.function.IntConsumer;
+
+//gossip encoding of log records
+//camera names are replaced by ids, valid for a single gossip request or stream
+public class RecordCodec {
+
+    private final Map<String, Integer> cameraIds = new HashMap<>();
+    private Map<Integer, String> newCameras = new HashMap<>();
+
+    private final Map<Integer, String> cameraNames = new HashMap<>();
+
+    public LogRecordsRequest encode(LogRecord record) {
+        Operation operation = record.getOperation();
+        LogRecordsRequest.Builder builder = operation.getPayload().toBuilder().setRepN(record.getRepN());
+
+        packClock(record.getTimestamp(), builder::addTimestamp);
+        packClock(record.getPrevTS(), builder::addPrevTS);
+
+        UUID uuid = parseUUID(record.getId());
+        if (uuid != null)
+            builder.setUuid(ByteString.copyFrom(ByteBuffer.allocate(16)
+                    .putLong(uuid.getMostSignificantBits())
+                    .putLong(uuid.getLeastSignificantBits())
+                    .array()));
+        else
+            builder.setOpIdText(record.getId());
+
+        if (operation.getCamName() != null)
+            builder.setCamera(cameraId(operation.getCamName()));
+
+        return builder.build();
+    }
+
+    //cameras given an id since the last call, to be sent along with the records
+    public Map<Integer, String> takeNewCameras() {
+        Map<Integer, String> cameras = this.newCameras;
+        this.newCameras = new HashMap<>();
+        return cameras;
+    }
+
+    public void addCameras(Map<Integer, String> cameras) {
+        this.cameraNames.putAll(cameras);
+    }
+
+    public LogRecord decode(LogRecordsRequest lrr) throws InvalidGossipRecordException {
+        String id;
+        switch (lrr.getOpIdCase()) {
+            case UUID:
+                if (lrr.getUuid().size() != 16)
+                    throw new InvalidGossipRecordException("operation id");
+                ByteBuffer bytes = lrr.getUuid().asReadOnlyByteBuffer();
+                id = new UUID(bytes.getLong(), bytes.getLong()).toString();
+                break;
+            case OPIDTEXT:
+                id = lrr.getOpIdText();
+                break;
+            default:
+                throw new InvalidGossipRecordException("operation id");
+        }
+        if (id.isEmpty())
+            throw new InvalidGossipRecordException("operation id");
+
+        //a record whose operation was never set would otherwise decode as the first one
+        if (lrr.getOp() == OpCode.UNRECOGNIZED || lrr.getOp() == OpCode.OP_UNSPECIFIED)
+            throw new InvalidGossipRecordException(id);
+        if (lrr.getTimestampCount() == 0)
+            throw new InvalidGossipRecordException(id);
+
+        String camName = null;
+        if (lrr.getOp() == OpCode.CAM_JOIN || lrr.getOp() == OpCode.REPORT) {
+            camName = this.cameraNames.get(lrr.getCamera());
+            if (camName == null)
+                throw new InvalidGossipRecordException(id);
+        }
+
+        //the payload keeps only the operation's own fields
+        LogRecordsRequest payload = lrr.toBuilder()
+                .clearRepN().clearTimestamp().clearPrevTS().clearOpId().clearCamera()
+                .build();
+
+        return new LogRecord(lrr.getRepN(),
+                unpackClock(lrr.getTimestampList(), id),
+                unpackClock(lrr.getPrevTSList(), id),
+                id,
+                new Operation(lrr.getOp(), camName, payload));
+    }
+
+    private int cameraId(String camName) {
+        return this.cameraIds.computeIfAbsent(camName, name -> {
+            //ids start at one, zero is a record without camera
+            int cameraId = this.cameraIds.size() + 1;
+            this.newCameras.put(cameraId, name);
+            return cameraId;
+        });
+    }
+
+    private static void packClock(Map<Integer, Integer> clock, IntConsumer out) {
+        for (Map.Entry<Integer, Integer> entry : clock.entrySet()) {
+            out.accept(entry.getKey());
+            out.accept(entry.getValue());
+        }
+    }
+
+    private static Map<Integer, Integer> unpackClock(List<Integer> packed, String id) throws InvalidGossipRecordException {
+        if (packed.size() % 2 != 0)
+            throw new InvalidGossipRecordException(id);
+
+        Map<Integer, Integer> clock = new HashMap<>();
+        for (int i = 0; i < packed.size(); i += 2)
+            clock.put(packed.get(i), packed.get(i + 1));
+        return clock;
+    }
+
+    //only canonical uuids are sent as bytes, so the id is rebuilt exactly
+    private static UUID parseUUID(String id) {
+        try {
+            UUID uuid = UUID.fromString(id);
+            return uuid.toString().equals(id) ? uuid : null;
+        } catch (IllegalArgumentException e) {
+            return null;
+        }
+    }
+}
@@ -3,65 +3,213 @@ package pt.tecnico.sauron.silo.api;
 import io.grpc.ManagedChannel;
 import io.grpc.ManagedChannelBuilder;
 import io.grpc.Status;
-import io.grpc.StatusRuntimeException;
+import io.grpc.stub.StreamObserver;
 import pt.tecnico.sauron.silo.exceptions.InvalidCoordinatesException;
-import pt.tecnico.sauron.silo.grpc.GossipRequest;
+import pt.tecnico.sauron.silo.grpc.GossipAck;
+import pt.tecnico.sauron.silo.grpc.GossipChunk;
+import pt.tecnico.sauron.silo.grpc.LogRecordsRequest;
 import pt.tecnico.sauron.silo.grpc.SiloOperationsServiceGrpc;
 import pt.ulisboa.tecnico.sdis.zk.ZKNaming;
 import pt.ulisboa.tecnico.sdis.zk.ZKNamingException;
 import pt.ulisboa.tecnico.sdis.zk.ZKRecord;
 
-import java.util.ArrayList;
-import java.util.HashMap;
-import java.util.List;
-import java.util.Map;
+import java.util.*;
+import java.util.concurrent.*;
 
 public class ServerGossipGateway extends InvalidCoordinatesException implements AutoCloseable {
 
+    //time a replica has to acknowledge a gossip chunk before being considered missing
+    public static final long DEFAULT_GOSSIP_DEADLINE = 5000;
+
+    //bounds of a single gossip chunk, well below gRPC's maximum message size
+    public static final int CHUNK_RECORDS = 256;
+    public static final int CHUNK_BYTES = 512 * 1024;
+
+    //chunks sent to a replica without being acknowledged
+    public static final int CHUNK_WINDOW = 4;
+
     private List<ManagedChannel> channels = new ArrayList<>();
-    private Map<String, SiloOperationsServiceGrpc.SiloOperationsServiceBlockingStub> stubs = new HashMap<>();
+    private Map<String, SiloOperationsServiceGrpc.SiloOperationsServiceStub> stubs = new HashMap<>();
+    private ExecutorService executor;
+    private long gossipDeadline;
+    private int replicaNumber;
+    private int replicaCount;
+    //relayed backlogs drop records before every replica has them, so their replica timestamp is not sent
+    private boolean relay;
 
     public ServerGossipGateway(String zooHost, String zooPort, String repN) throws ZKNamingException {
+        this(zooHost, zooPort, repN, GossipTopology.all(), DEFAULT_GOSSIP_DEADLINE);
+    }
+
+    public ServerGossipGateway(String zooHost, String zooPort, String repN, GossipTopology topology) throws ZKNamingException {
+        this(zooHost, zooPort, repN, topology, DEFAULT_GOSSIP_DEADLINE);
+    }
+
+    public ServerGossipGateway(String zooHost, String zooPort, String repN, GossipTopology topology, long gossipDeadline) throws ZKNamingException {
 
         ZKNaming zkNaming = new ZKNaming(zooHost, zooPort);
+        this.gossipDeadline = gossipDeadline;
+        this.replicaNumber = Integer.parseInt(repN);
+        this.relay = !topology.isAll();
 
+        SortedMap<Integer, String> replicas = new TreeMap<>();
         for (ZKRecord record : zkNaming.listRecords("/grpc/sauron/silo")) {
-            if (record.getPath().contains(repN))
-                continue;
-            String target = record.getURI();
+            String path = record.getPath();
+            replicas.put(Integer.parseInt(path.substring(path.lastIndexOf('/') + 1)), record.getURI());
+        }
+        replicas.putIfAbsent(this.replicaNumber, null);
+        this.replicaCount = replicas.size();
+
+        SortedMap<Integer, String> followers = new TreeMap<>();
+        try {
+            for (ZKRecord record : zkNaming.listRecords("/grpc/sauron/follower")) {
+                String path = record.getPath();
+                followers.put(Integer.parseInt(path.substring(path.lastIndexOf('/') + 1)), record.getURI());
+            }
+        } catch (ZKNamingException e) {
+            //no follower was ever registered
+        }
 
+        //channels are only opened to the replicas picked for this round
+        List<String> targets = topology.select(this.replicaNumber, replicas);
+        targets.addAll(topology.selectFollowers(this.replicaNumber, replicas, followers));
+        for (String target : targets) {
             ManagedChannel channel = ManagedChannelBuilder.forTarget(target).usePlaintext().build();
             this.channels.add(channel);
-            this.stubs.put(target, SiloOperationsServiceGrpc.newBlockingStub(channel));
+            this.stubs.put(target, SiloOperationsServiceGrpc.newStub(channel).withCompression("gzip"));
         }
+        this.executor = Executors.newFixedThreadPool(Math.max(1, this.stubs.size()));
+
+    }
+
+    public Set<String> getTargets() {
+        return this.stubs.keySet();
+    }
 
+    //registered replicas, including this one
+    public int getReplicaCount() {
+        return this.replicaCount;
     }
 
-    public List<String> gossip(GossipRequest request, GossipRequest backUp, List<String> missingReps) {
+    //streams the backlog to every replica at once, each one resuming from its last acknowledged chunk
+    public List<String> gossip(ServerRequestHandler handler) {
         List<String> unavailable = new ArrayList<>();
+        Map<String, Future<Boolean>> pending = new HashMap<>();
 
-        for (Map.Entry<String, SiloOperationsServiceGrpc.SiloOperationsServiceBlockingStub> stub : this.stubs.entrySet()) {
+        for (Map.Entry<String, SiloOperationsServiceGrpc.SiloOperationsServiceStub> stub : this.stubs.entrySet()) {
             System.out.println("Contacting replica at " + stub.getKey() + " sending updates...");
+            pending.put(stub.getKey(), this.executor.submit(() -> streamGossip(stub.getKey(), stub.getValue(), handler)));
+        }
+
+        for (Map.Entry<String, Future<Boolean>> call : pending.entrySet()) {
             try {
-                if (missingReps.contains(stub.getKey())) {
-                    stub.getValue().gossip(backUp);
-                }
-                else stub.getValue().gossip(request);
-                System.out.println("Contact with replica at "+ stub.getKey() + " successful");
-            }
-            catch (StatusRuntimeException e) {
-                if (e.getStatus().getCode().equals(Status.Code.UNAVAILABLE)) {
-                    System.out.println("Caught exception while contacting replica at " + stub.getKey() + ".Skipping...");
-                    unavailable.add(stub.getKey());
+                call.getValue().get();
+                System.out.println("Contact with replica at " + call.getKey() + " successful");
+                continue;
+            } catch (ExecutionException e) {
+                //only a replica that cannot be reached is skipped quietly, anything else is a fault worth reporting
+                Status status = Status.fromThrowable(e.getCause());
+                if (status.getCode() != Status.Code.UNAVAILABLE && status.getCode() != Status.Code.DEADLINE_EXCEEDED) {
+                    System.err.println("Replica at " + call.getKey() + " rejected gossip: " + status.getCode() + " " + status.getDescription());
+                    continue;
                 }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
             }
+            System.out.println("Caught exception while contacting replica at " + call.getKey() + ".Skipping...");
+            unavailable.add(call.getKey());
         }
         return unavailable;
     }
 
+    //records of the backlog are copied a chunk at a time, the round's backlog only grows until it is expired
+    //the window bounds each chunk and the call deadline the whole stream, acknowledged chunks are kept either way
+    private boolean streamGossip(String target, SiloOperationsServiceGrpc.SiloOperationsServiceStub stub, ServerRequestHandler handler) throws InterruptedException {
+        int from = handler.getAcknowledgedRecords(target);
+        int end = handler.getGossipBacklogSize();
+        Map<Integer, Integer> repTs = this.relay ? Map.of() : handler.getGossipTS();
+
+        Semaphore window = new Semaphore(CHUNK_WINDOW);
+        Map<Long, Integer> chunkEnds = new ConcurrentHashMap<>();
+        CompletableFuture<Void> done = new CompletableFuture<>();
+        RecordCodec codec = new RecordCodec();
+
+        long deadline = this.gossipDeadline * (2 + (end - from) / CHUNK_RECORDS);
+        StreamObserver<GossipChunk> requestObserver = stub.withDeadlineAfter(deadline, TimeUnit.MILLISECONDS).gossipStream(new StreamObserver<>() {
+            @Override
+            public void onNext(GossipAck ack) {
+                Integer end = chunkEnds.remove(ack.getSeq());
+                if (end != null)
+                    handler.acknowledgeGossip(target, end);
+                window.release();
+            }
+
+            @Override
+            public void onError(Throwable t) {
+                done.completeExceptionally(t);
+                window.release(CHUNK_WINDOW);
+            }
+
+            @Override
+            public void onCompleted() {
+                done.complete(null);
+            }
+        });
+
+        //chunks are built as they are sent, never holding the whole backlog as messages
+        int position = from;
+        long seq = 0;
+        boolean last = false;
+        while (!last) {
+            GossipChunk.Builder chunk = GossipChunk.newBuilder().setSenderRepN(this.replicaNumber).setSeq(seq);
+            int size = 0;
+            for (LogRecord record : handler.getGossipBacklog(position, Math.min(position + CHUNK_RECORDS, end))) {
+                if (size >= CHUNK_BYTES)
+                    break;
+                LogRecordsRequest lr = codec.encode(record);
+                size += lr.getSerializedSize();
+                chunk.addLog(lr);
+                position++;
+            }
+            chunk.putAllCameras(codec.takeNewCameras());
+            last = position == end;
+            if (last)
+                chunk.setLast(true).putAllRepTs(repTs);
+
+            if (!window.tryAcquire(this.gossipDeadline, TimeUnit.MILLISECONDS) || done.isDone()) {
+                Status status = done.isCompletedExceptionally() ? failure(done) : Status.DEADLINE_EXCEEDED.withDescription("Gossip chunk not acknowledged");
+                requestObserver.onError(status.asRuntimeException());
+                throw status.asRuntimeException();
+            }
+            chunkEnds.put(seq, position);
+            requestObserver.onNext(chunk.build());
+            seq++;
+        }
+        requestObserver.onCompleted();
+
+        try {
+            done.get(this.gossipDeadline, TimeUnit.MILLISECONDS);
+            return true;
+        } catch (ExecutionException e) {
+            throw Status.fromThrowable(e.getCause()).asRuntimeException();
+        } catch (TimeoutException e) {
+            throw Status.DEADLINE_EXCEEDED.withDescription("Gossip stream not answered").asRuntimeException();
+        }
+    }
+
+    private static Status failure(CompletableFuture<Void> done) {
+        try {
+            done.join();
+            return Status.UNKNOWN;
+        } catch (CompletionException e) {
+            return Status.fromThrowable(e.getCause());
+        }
+    }
+
 
     @Override
     public void close() {
+        this.executor.shutdownNow();
         for (ManagedChannel channel : this.channels)
             channel.shutdownNow();
     }
@@ -4,9 +4,8 @@ import io.grpc.stub.StreamObserver;
 import pt.tecnico.sauron.silo.exceptions.DuplicateOperationException;
 import pt.tecnico.sauron.silo.grpc.*;
 
-import java.util.HashMap;
-import java.util.List;
-import java.util.Map;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.CopyOnWriteArrayList;
 import java.util.stream.Collectors;
@@ -21,13 +20,24 @@ public class ServerRequestHandler {
 
     private Map<Integer, Integer> valueTS = new ConcurrentHashMap<>();
 
-    private List<String> executedOpsTable = new CopyOnWriteArrayList<>();
+    private Set<String> executedOpsTable = ConcurrentHashMap.newKeySet();
 
-    //replicas down on previous gossip
-    private List<String> missingReplicas = new CopyOnWriteArrayList<>();
+    //records already gossiped but not yet acknowledged by every replica
+    private List<LogRecord> gossipBacklog = new CopyOnWriteArrayList<>();
 
-    //log sent to replicas previously down
-    private GossipRequest.Builder backupGossip = GossipRequest.newBuilder();
+    //number of backlog records each replica has acknowledged
+    private Map<String, Integer> acknowledgedRecords = new ConcurrentHashMap<>();
+
+    //backlog size at the end of each round still in the backlog, oldest first
+    private Deque<Integer> backlogRounds = new ArrayDeque<>();
+
+    //replica timestamp sent along with the backlog
+    private Map<Integer, Integer> gossipTS = new HashMap<>();
+
+    //executed operations other than reports since the last clear, oldest first, compared by anti-entropy
+    private List<LogRecord> controlLog = new CopyOnWriteArrayList<>();
+    private Set<String> controlIds = ConcurrentHashMap.newKeySet();
+    private long controlDigest = 0;
 
 
     public ServerRequestHandler(Integer replicaNumber) {
@@ -35,23 +45,102 @@ public class ServerRequestHandler {
     }
 
 
-    //handler to successful gossip
-    //log can be erased
-    public void successfulGossipHandler() {
-        //clear backUp log after sending a gossip to all the replicas containing the update log
-        cleanBackupGossip();
-        cleanUpdateLog();
-        this.missingReplicas.clear();
+    //state of a replica that joined from a snapshot, gossip resumes from its timestamp
+    public synchronized void installSnapshot(Map<Integer, Integer> valueTS, Set<String> executedOps) {
+        this.valueTS.clear();
+        this.valueTS.putAll(valueTS);
+        this.replicaTS.clear();
+        this.replicaTS.putAll(valueTS);
+        this.executedOpsTable.clear();
+        this.executedOpsTable.addAll(executedOps);
+    }
+
+    public synchronized List<String> getExecutedOps() {
+        return new ArrayList<>(this.executedOpsTable);
+    }
+
+    //moves executed updates from the log to the gossip backlog, where they stay until every replica acknowledges them
+    public synchronized void prepareGossip() {
+        List<LogRecord> executed = this.updateLog.stream()
+                .filter(update -> executedOpsTable.contains(update.getId()))
+                .collect(Collectors.toList());
+
+        this.gossipBacklog.addAll(executed);
+        this.updateLog.removeAll(executed);
+        this.backlogRounds.addLast(this.gossipBacklog.size());
+        this.gossipTS = new HashMap<>(this.replicaTS);
+    }
+
+    public synchronized void dropExecutedUpdates() {
+        this.updateLog.removeIf(update -> executedOpsTable.contains(update.getId()));
+    }
+
+    public synchronized int getAcknowledgedRecords(String replica) {
+        return Math.min(this.acknowledgedRecords.getOrDefault(replica, 0), this.gossipBacklog.size());
+    }
+
+    //backlog records from the given position on
+    public synchronized List<LogRecord> getGossipBacklog(int from) {
+        return getGossipBacklog(from, this.gossipBacklog.size());
+    }
+
+    //backlog records between the given positions, gossip copies one chunk at a time
+    public synchronized List<LogRecord> getGossipBacklog(int from, int to) {
+        return new ArrayList<>(this.gossipBacklog.subList(from, Math.min(to, this.gossipBacklog.size())));
+    }
+
+    public synchronized int getGossipBacklogSize() {
+        return this.gossipBacklog.size();
+    }
+
+    public int getPendingUpdates() {
+        return this.updateLog.size();
+    }
+
+    public boolean hasGossipBacklog() {
+        return !this.gossipBacklog.isEmpty();
+    }
+
+    public synchronized Map<Integer, Integer> getGossipTS() {
+        return new HashMap<>(this.gossipTS);
+    }
+
+    //replica acknowledged every backlog record before the given position
+    public synchronized void acknowledgeGossip(String replica, int position) {
+        this.acknowledgedRecords.merge(replica, position, Integer::max);
+    }
+
+    //handler to the end of a gossip round
+    //backlog can be erased once every replica acknowledged it
+    public synchronized void gossipRoundHandler(Collection<String> replicas) {
+        for (String replica : replicas) {
+            if (getAcknowledgedRecords(replica) < this.gossipBacklog.size())
+                return;
+        }
+        this.gossipBacklog.clear();
+        this.acknowledgedRecords.clear();
+        this.backlogRounds.clear();
     }
 
-    public void missedGossipHandler(List<String> missingReplicas) {
-        //clear backUp log after sending a gossip to all the replicas containing the update log
-        cleanUpdateLog();
-        this.missingReplicas = missingReplicas;
+    //handler to the end of a relayed gossip round, where only some replicas are contacted
+    //records are dropped once they were offered for the given number of rounds, replicas that missed them get them from others or through anti-entropy
+    public synchronized void expireGossip(int rounds) {
+        int expired = 0;
+        while (this.backlogRounds.size() > rounds)
+            expired = this.backlogRounds.pollFirst();
+        if (expired == 0)
+            return;
+
+        int dropped = expired;
+        this.gossipBacklog.subList(0, dropped).clear();
+        this.backlogRounds = this.backlogRounds.stream()
+                .map(end -> end - dropped)
+                .collect(Collectors.toCollection(ArrayDeque::new));
+        this.acknowledgedRecords.replaceAll((replica, position) -> Math.max(0, position - dropped));
     }
 
     //respond to an update request by the client
-    public synchronized LogRecord processUpdateRequest(String op, ClientRequest request, StreamObserver<ClientResponse> responseObserver) throws DuplicateOperationException {
+    public synchronized LogRecord processUpdateRequest(OpCode op, ClientRequest request, StreamObserver<ClientResponse> responseObserver) throws DuplicateOperationException {
 
 
         //Sends Exception when operation Id is in the executed operations --> Protects duplicate requests
@@ -96,36 +185,76 @@ public class ServerRequestHandler {
         this.updateLog.clear();
     }
 
-    public synchronized void cleanBackupGossip() {
-
-        this.backupGossip.clear();
-    }
-
     //apply updates to the replica
     public synchronized void updateReplicaState(LogRecord logRecord) {
 
         mergeTS(this.valueTS, logRecord.getTimestamp());
         this.executedOpsTable.add(logRecord.getId());
+        recordControl(logRecord);
 
     }
 
     //merging the updates from gossip with the replica own pending updates
+    //records are told apart by id, relayed gossip may bring a record after a timestamp that already covers it
+    //repTs only comes from senders that still hold every record it covers, otherwise each record advances its own entry
     public synchronized void mergeIncomingLog(GossipMessage g) {
+        Set<String> logged = this.updateLog.stream().map(LogRecord::getId).collect(Collectors.toSet());
         for (LogRecord r : g.getLog()) {
 
-            if (!happensBefore(r.getTimestamp(),this.replicaTS) && !this.replicaTS.equals(r.getTimestamp()))
-                this.updateLog.add(r);
+            if (isInExecutedUpdates(r.getId())) {
+                //a replica that joined from a snapshot learns the control operations it already holds
+                recordControl(r);
+                continue;
+            }
+            if (!logged.add(r.getId()))
+                continue;
+
+            this.updateLog.add(r);
+            this.replicaTS.merge(r.getRepN(), r.getTimestamp().getOrDefault(r.getRepN(), 0), Integer::max);
         }
         mergeTS(this.replicaTS, g.getRepTs());
 
     }
 
+    private void recordControl(LogRecord logRecord) {
+        if (logRecord.getOperation() == null || logRecord.getOperation().getOperation() == OpCode.REPORT)
+            return;
+        if (this.controlIds.add(logRecord.getId())) {
+            this.controlLog.add(logRecord);
+            this.controlDigest += UUID.nameUUIDFromBytes(logRecord.getId().getBytes(StandardCharsets.UTF_8)).getMostSignificantBits();
+        }
+    }
+
+    public synchronized List<LogRecord> getControlLog() {
+        return new ArrayList<>(this.controlLog);
+    }
+
+    //sum of the hashes of the control operation ids, equal logs have equal digests
+    public synchronized long getControlDigest() {
+        return this.controlDigest;
+    }
+
+    public synchronized int getControlCount() {
+        return this.controlLog.size();
+    }
+
+    //id of the clear the control log starts from, null when the replica was never cleared
+    public synchronized String getLastClear() {
+        if (this.controlLog.isEmpty() || this.controlLog.get(0).getOperation().getOperation() != OpCode.CTRL_CLEAR)
+            return null;
+        return this.controlLog.get(0).getId();
+    }
+
     //increase replica's timestamp by one
     public synchronized void increaseReplicaTS(Integer replicaNumber) {
         this.replicaTS.merge(replicaNumber, 1, Integer::sum);
     }
 
 
+    public boolean isExecuted(String operationID) {
+        return isInExecutedUpdates(operationID);
+    }
+
     //checks if update has already been done
     private synchronized boolean isInExecutedUpdates(String operationID) {
         return this.executedOpsTable.contains(operationID);
@@ -142,40 +271,15 @@ public class ServerRequestHandler {
     }
 
 
-    public GossipRequest buildGossipRequest() {
-        GossipRequest.Builder gRequest = GossipRequest.newBuilder().putAllRepTs(this.replicaTS);
-        for (LogRecord lr : this.updateLog) {
-            Operation op = lr.getOperation();
-
-            OperationRequest opRequest = OperationRequest.newBuilder()
-                    .setRequest(op.getRequest())
-                    .setOp(op.getOperation()).build();
-
-            LogRecordsRequest lrRequest = LogRecordsRequest.newBuilder()
-                    .setOperation(opRequest)
-                    .setId(lr.getId())
-                    .setRepN(lr.getRepN())
-                    .putAllPrevTS(lr.getPrevTS())
-                    .putAllTimestamp(lr.getTimestamp()).build();
-            gRequest.addLog(lrRequest);
-
-            this.backupGossip.addLog(lrRequest);
-        }
-        this.backupGossip.putAllRepTs(this.replicaTS);
-        return gRequest.build();
-    }
-
     public Map<Integer, Integer> getValueTS() {
         return valueTS;
     }
 
-    public List<String> getMissingReplicas() {
-        return missingReplicas;
+    //the replica state includes every update the given timestamp depends on
+    public boolean coversTimestamp(Map<Integer, Integer> prevTS) {
+        return happensBefore(prevTS, this.valueTS);
     }
 
-    public GossipRequest.Builder getBackupGossip() {
-        return backupGossip;
-    }
 
     //checks if a happens before b
     private boolean happensBefore(Map<Integer, Integer> a, Map<Integer, Integer> b) {
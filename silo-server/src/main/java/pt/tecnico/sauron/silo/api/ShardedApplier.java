@@ -0,0 +1,60 @@
+package pt.tecnico.sauron.silo.api;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Consumer;
+
+//applies reports for different cameras in parallel, reports for the same camera keep their order
+public class ShardedApplier implements AutoCloseable {
+
+    //below this many reports the batch is applied on the calling thread
+    public static final int MIN_PARALLEL_REPORTS = 64;
+
+    private final ExecutorService workers;
+
+    public ShardedApplier() {
+        this(Runtime.getRuntime().availableProcessors());
+    }
+
+    public ShardedApplier(int threads) {
+        AtomicInteger count = new AtomicInteger();
+        this.workers = Executors.newFixedThreadPool(threads, task -> {
+            Thread thread = new Thread(task, "silo-shard-" + count.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    //returns once every report has been applied
+    public void apply(List<LogRecord> reports, Consumer<LogRecord> apply) {
+        Map<String, List<LogRecord>> shards = new LinkedHashMap<>();
+        for (LogRecord report : reports)
+            shards.computeIfAbsent(cameraOf(report), name -> new ArrayList<>()).add(report);
+
+        if (reports.size() < MIN_PARALLEL_REPORTS || shards.size() == 1) {
+            reports.forEach(apply);
+            return;
+        }
+
+        List<CompletableFuture<Void>> running = new ArrayList<>();
+        for (List<LogRecord> shard : shards.values())
+            running.add(CompletableFuture.runAsync(() -> shard.forEach(apply), this.workers));
+        CompletableFuture.allOf(running.toArray(CompletableFuture<?>[]::new)).join();
+    }
+
+    private static String cameraOf(LogRecord report) {
+        return report.getOperation().getCamName();
+    }
+
+    //apply joins every shard, so no report is left running when the workers stop
+    @Override
+    public void close() {
+        this.workers.shutdown();
+    }
+}
@@ -0,0 +1,30 @@
+package pt.tecnico.sauron.silo.api;
+
+import pt.tecnico.sauron.silo.domain.Silo;
+
+import java.util.Map;
+import java.util.Set;
+
+public class Snapshot {
+    private Silo silo;
+    private Map<Integer, Integer> valueTS;
+    private Set<String> executedOps;
+
+    public Snapshot(Silo silo, Map<Integer, Integer> valueTS, Set<String> executedOps) {
+        this.silo = silo;
+        this.valueTS = valueTS;
+        this.executedOps = executedOps;
+    }
+
+    public Silo getSilo() {
+        return silo;
+    }
+
+    public Map<Integer, Integer> getValueTS() {
+        return valueTS;
+    }
+
+    public Set<String> getExecutedOps() {
+        return executedOps;
+    }
+}
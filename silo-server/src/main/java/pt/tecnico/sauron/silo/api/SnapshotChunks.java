@@ -0,0 +1,79 @@
+package pt.tecnico.sauron.silo.api;
+
+import pt.tecnico.sauron.silo.domain.Camera;
+import pt.tecnico.sauron.silo.domain.Observation;
+import pt.tecnico.sauron.silo.domain.Silo;
+import pt.tecnico.sauron.silo.grpc.CameraSnapshot;
+import pt.tecnico.sauron.silo.grpc.ObservationMessage;
+import pt.tecnico.sauron.silo.grpc.SnapshotChunk;
+
+import java.util.*;
+
+//builds the chunks of a captured snapshot as they are sent
+public class SnapshotChunks implements Iterator<SnapshotChunk> {
+
+    public static final int OPS_PER_CHUNK = 10000;
+    public static final int OBSERVATIONS_PER_CHUNK = 2000;
+
+    private Map<Integer, Integer> valueTS;
+    private List<String> executedOps;
+    private Iterator<Map.Entry<Camera, List<Observation>>> cameras;
+
+    private boolean headerSent = false;
+    private int opsSent = 0;
+    private Map.Entry<Camera, List<Observation>> camera;
+    private int observationsSent = 0;
+
+    public SnapshotChunks(Map<Integer, Integer> valueTS, List<String> executedOps, Map<Camera, List<Observation>> observations) {
+        this.valueTS = valueTS;
+        this.executedOps = executedOps;
+        this.cameras = observations.entrySet().iterator();
+    }
+
+    @Override
+    public boolean hasNext() {
+        return !this.headerSent || this.opsSent < this.executedOps.size() || this.camera != null || this.cameras.hasNext();
+    }
+
+    @Override
+    public SnapshotChunk next() {
+        if (!hasNext())
+            throw new NoSuchElementException();
+
+        //timestamp goes first, then executed operations, then each camera's observations
+        if (!this.headerSent) {
+            this.headerSent = true;
+            return SnapshotChunk.newBuilder().putAllValueTS(this.valueTS).build();
+        }
+        if (this.opsSent < this.executedOps.size()) {
+            int end = Math.min(this.opsSent + OPS_PER_CHUNK, this.executedOps.size());
+            SnapshotChunk chunk = SnapshotChunk.newBuilder().addAllExecutedOps(this.executedOps.subList(this.opsSent, end)).build();
+            this.opsSent = end;
+            return chunk;
+        }
+        if (this.camera == null) {
+            this.camera = this.cameras.next();
+            this.observationsSent = 0;
+        }
+
+        Camera cam = this.camera.getKey();
+        List<Observation> observations = this.camera.getValue();
+        CameraSnapshot.Builder builder = CameraSnapshot.newBuilder()
+                .setCamName(cam.getName())
+                .setLatitude(cam.getLat())
+                .setLongitude(cam.getLog());
+
+        int end = Math.min(this.observationsSent + OBSERVATIONS_PER_CHUNK, observations.size());
+        for (Observation o : observations.subList(this.observationsSent, end)) {
+            builder.addObservation(ObservationMessage.newBuilder()
+                    .setId(o.getId())
+                    .setType(o.getType())
+                    .setDatetime(o.getDateTime().format(Silo.formatter)));
+        }
+        this.observationsSent = end;
+        if (end == observations.size())
+            this.camera = null;
+
+        return SnapshotChunk.newBuilder().addCamera(builder).build();
+    }
+}
@@ -0,0 +1,65 @@
+package pt.tecnico.sauron.silo.api;
+
+import io.grpc.ManagedChannel;
+import io.grpc.ManagedChannelBuilder;
+import pt.tecnico.sauron.silo.domain.Camera;
+import pt.tecnico.sauron.silo.domain.Observation;
+import pt.tecnico.sauron.silo.domain.Silo;
+import pt.tecnico.sauron.silo.exceptions.*;
+import pt.tecnico.sauron.silo.grpc.*;
+
+import java.time.LocalDateTime;
+import java.util.*;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+
+public class SnapshotGateway implements AutoCloseable {
+
+    //bootstrap runs before the server starts, a replica that stops sending must not hold it
+    public static final long SNAPSHOT_DEADLINE = 60000;
+
+    private ManagedChannel channel;
+    private SiloOperationsServiceGrpc.SiloOperationsServiceBlockingStub stub;
+
+    public SnapshotGateway(String target) {
+        this.channel = ManagedChannelBuilder.forTarget(target).usePlaintext().build();
+        this.stub = SiloOperationsServiceGrpc.newBlockingStub(this.channel);
+    }
+
+    //streams the replica's state into a new silo
+    public Snapshot fetch(int repN) throws CameraNameNotUniqueException, CameraNameInvalidException,
+            CameraNameNullException, InvalidCoordinatesException, NoSuchCameraNameException, InvalidDateException, InvalidIdException {
+
+        Silo silo = new Silo();
+        Map<Integer, Integer> valueTS = new HashMap<>();
+        Set<String> executedOps = new HashSet<>();
+        Map<String, List<Observation>> observations = new HashMap<>();
+
+        Iterator<SnapshotChunk> chunks = this.stub.withDeadlineAfter(SNAPSHOT_DEADLINE, TimeUnit.MILLISECONDS).snapshot(SnapshotRequest.newBuilder().setRepN(repN).build());
+        while (chunks.hasNext()) {
+            SnapshotChunk chunk = chunks.next();
+            valueTS.putAll(chunk.getValueTSMap());
+            executedOps.addAll(chunk.getExecutedOpsList());
+
+            for (CameraSnapshot cs : chunk.getCameraList()) {
+                if (!silo.checkIfCameraExists(cs.getCamName()))
+                    silo.addCamera(new Camera(cs.getCamName(), cs.getLatitude(), cs.getLongitude()));
+
+                List<Observation> list = observations.computeIfAbsent(cs.getCamName(), name -> new ArrayList<>());
+                for (ObservationMessage om : cs.getObservationList())
+                    list.add(new Observation(om.getType(), om.getId(), LocalDateTime.parse(om.getDatetime(), Silo.formatter), cs.getCamName()));
+            }
+        }
+
+        //observations are set at once, building each camera's merkle tree a single time
+        for (Map.Entry<String, List<Observation>> entry : observations.entrySet())
+            silo.getCameraByName(entry.getKey()).setObservations(new CopyOnWriteArrayList<>(entry.getValue()));
+
+        return new Snapshot(silo, valueTS, executedOps);
+    }
+
+    @Override
+    public void close() {
+        this.channel.shutdownNow();
+    }
+}
@@ -0,0 +1,85 @@
+package pt.tecnico.sauron.silo.api;
+
+import java.util.Queue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.LockSupport;
+import java.util.function.Supplier;
+
+//single thread applying every state mutation, in the order tasks were submitted
+public class UpdateApplier implements Executor, AutoCloseable {
+
+    //lock-free queue, many gRPC threads produce and the apply thread consumes
+    private final Queue<Runnable> tasks = new ConcurrentLinkedQueue<>();
+    private final AtomicInteger pendingTasks = new AtomicInteger();
+    private final Thread thread;
+    private volatile boolean running = true;
+
+    public UpdateApplier() {
+        this.thread = new Thread(this::run, "silo-apply");
+        this.thread.setDaemon(true);
+        this.thread.start();
+    }
+
+    @Override
+    public void execute(Runnable task) {
+        this.pendingTasks.incrementAndGet();
+        this.tasks.add(task);
+        LockSupport.unpark(this.thread);
+    }
+
+    //tasks queued and not yet applied
+    public int getPendingTasks() {
+        return this.pendingTasks.get();
+    }
+
+    //the future always completes, a fatal error is rethrown only after it did
+    public <T> CompletableFuture<T> submit(Supplier<T> task) {
+        CompletableFuture<T> result = new CompletableFuture<>();
+        execute(() -> {
+            try {
+                result.complete(task.get());
+            } catch (Throwable t) {
+                result.completeExceptionally(t);
+                if (t instanceof VirtualMachineError)
+                    throw t;
+            }
+        });
+        return result;
+    }
+
+    public CompletableFuture<Void> submit(Runnable task) {
+        return submit(() -> {
+            task.run();
+            return null;
+        });
+    }
+
+    private void run() {
+        while (this.running) {
+            Runnable task = this.tasks.poll();
+            if (task == null) {
+                LockSupport.park(this);
+                continue;
+            }
+            //one failed task must not stop the thread, unless the VM itself is failing
+            try {
+                task.run();
+            } catch (VirtualMachineError e) {
+                throw e;
+            } catch (Throwable t) {
+                t.printStackTrace();
+            } finally {
+                this.pendingTasks.decrementAndGet();
+            }
+        }
+    }
+
+    @Override
+    public void close() {
+        this.running = false;
+        LockSupport.unpark(this.thread);
+    }
+}
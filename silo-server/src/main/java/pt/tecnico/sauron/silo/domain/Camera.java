@@ -10,10 +10,12 @@ import java.util.concurrent.CopyOnWriteArrayList;
 
 public class Camera {
 
-    private String name;
-    private double lat;
-    private double log;
-    private List<Observation> observations = new CopyOnWriteArrayList<>();
+    //only written by the apply thread, read without locks
+    private volatile String name;
+    private volatile double lat;
+    private volatile double log;
+    private volatile List<Observation> observations = new CopyOnWriteArrayList<>();
+    private volatile MerkleTree merkleTree = new MerkleTree();
 
     public Camera() {
     }
@@ -30,15 +32,22 @@ public class Camera {
         this.log = log;
     }
 
-    public synchronized List<Observation> getObservations() {
+    public List<Observation> getObservations() {
         return observations;
     }
 
     public synchronized void setObservations(List<Observation> observations) {
         this.observations = observations;
+        this.merkleTree = new MerkleTree();
+        for (Observation o : observations)
+            this.merkleTree.add(o);
     }
 
-    public synchronized String getName() {
+    public MerkleTree getMerkleTree() {
+        return merkleTree;
+    }
+
+    public String getName() {
         return this.name;
     }
 
@@ -48,7 +57,7 @@ public class Camera {
         this.name = name;
     }
 
-    public synchronized double getLat() {
+    public double getLat() {
         return this.lat;
     }
 
@@ -58,7 +67,7 @@ public class Camera {
         this.lat = lat;
     }
 
-    public synchronized double getLog() {
+    public double getLog() {
         return this.log;
     }
 
@@ -70,6 +79,7 @@ public class Camera {
 
     public synchronized void addObservation(Observation observation) {
         this.observations.add(observation);
+        this.merkleTree.add(observation);
         //Just a system message
         System.out.println("Added observation for object id:" + observation.getId() + " and Type:" + observation.getType() +
                 " on " + observation.getDateTime() + " in camera " + this.name);
@@ -0,0 +1,85 @@
+package pt.tecnico.sauron.silo.domain;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.time.LocalDateTime;
+import java.time.ZoneOffset;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+
+public class MerkleTree {
+
+    //leaves are one hour buckets of observations, the tree covers 2^DEPTH hours from the epoch on
+    public static final int DEPTH = 20;
+    public static final long BUCKET_SECONDS = 3600;
+
+    private static final ThreadLocal<MessageDigest> digest = ThreadLocal.withInitial(() -> {
+        try {
+            return MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    });
+
+    //node hash is the sum of its children's, so every insert only updates one path
+    private final Map<Long, long[]> nodes = new HashMap<>();
+    //the tree hashes the set of observation keys, the same as repair compares, so a repeated observation is added once
+    private final Set<String> keys = new HashSet<>();
+
+    public synchronized void add(Observation observation) {
+        if (!this.keys.add(keyOf(observation)))
+            return;
+        long[] hash = hashOf(observation);
+        long leaf = bucketOf(observation.getDateTime());
+
+        for (int level = DEPTH; level >= 0; level--) {
+            long[] node = this.nodes.computeIfAbsent(nodeKey(level, leaf >> (DEPTH - level)), k -> new long[2]);
+            node[0] += hash[0];
+            node[1] += hash[1];
+        }
+    }
+
+    //hash of the node, empty nodes hash to zero
+    public synchronized byte[] getHash(int level, long index) {
+        long[] node = this.nodes.getOrDefault(nodeKey(level, index), new long[2]);
+        return ByteBuffer.allocate(16).putLong(node[0]).putLong(node[1]).array();
+    }
+
+    public synchronized boolean isEmpty(int level, long index) {
+        return !this.nodes.containsKey(nodeKey(level, index));
+    }
+
+    //hashes of the non empty descendants of a node, depth levels below it, by index
+    public synchronized Map<Long, byte[]> getDescendants(int level, long index, int depth) {
+        Map<Long, byte[]> descendants = new TreeMap<>();
+        for (long child = index << depth; child < (index + 1) << depth; child++) {
+            if (!isEmpty(level + depth, child))
+                descendants.put(child, getHash(level + depth, child));
+        }
+        return descendants;
+    }
+
+    public static long bucketOf(LocalDateTime dateTime) {
+        long bucket = dateTime.toEpochSecond(ZoneOffset.UTC) / BUCKET_SECONDS;
+        return Math.max(0, Math.min(bucket, (1L << DEPTH) - 1));
+    }
+
+    //identifies an observation within a camera
+    public static String keyOf(Observation observation) {
+        return observation.getType() + "|" + observation.getId() + "|" + observation.getDateTime().toEpochSecond(ZoneOffset.UTC);
+    }
+
+    private static long[] hashOf(Observation observation) {
+        ByteBuffer bytes = ByteBuffer.wrap(digest.get().digest(keyOf(observation).getBytes(StandardCharsets.UTF_8)));
+        return new long[]{bytes.getLong(), bytes.getLong()};
+    }
+
+    private static long nodeKey(int level, long index) {
+        return ((long) level << 48) | index;
+    }
+}
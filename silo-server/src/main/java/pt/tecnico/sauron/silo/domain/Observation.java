@@ -33,7 +33,7 @@ public class Observation implements Comparable<Observation> {
 
     }
 
-    public synchronized String getCamName() {
+    public String getCamName() {
         return camName;
     }
 
@@ -41,7 +41,7 @@ public class Observation implements Comparable<Observation> {
         this.camName = camName;
     }
 
-    public synchronized LocalDateTime getDateTime() {
+    public LocalDateTime getDateTime() {
         return this.dateTime;
     }
 
@@ -57,7 +57,7 @@ public class Observation implements Comparable<Observation> {
         this.type = type;
     }
 
-    public synchronized String getId() {
+    public String getId() {
         return id;
     }
 
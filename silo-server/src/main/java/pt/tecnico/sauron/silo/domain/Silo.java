@@ -13,7 +13,7 @@ public class Silo {
 
     public static DateTimeFormatter formatter = DateTimeFormatter.ofPattern("yyyy-MM-dd HH:mm:ss");
 
-    private List<Camera> cameras = new CopyOnWriteArrayList<>();
+    private volatile List<Camera> cameras = new CopyOnWriteArrayList<>();
 
 
     public Silo() {
@@ -185,7 +185,7 @@ public class Silo {
         return false;
     }
 
-    public synchronized Camera getCameraByName(String camName) throws CameraNameNullException, NoSuchCameraNameException {
+    public Camera getCameraByName(String camName) throws CameraNameNullException, NoSuchCameraNameException {
 
         //Camera name null
         if (camName.equals(null))
@@ -222,7 +222,7 @@ public class Silo {
     }
 
 
-    public synchronized List<Camera> getCameras() {
+    public List<Camera> getCameras() {
         return this.cameras;
     }
 
@@ -21,7 +21,9 @@ public enum ErrorMessage {
 
     NO_SUCH_OBJECT("The object with id %s does not exist"),
 
-    DUPLICATE_OPERATION("Duplicate request sent");
+    DUPLICATE_OPERATION("Duplicate request sent"),
+
+    INVALID_GOSSIP_RECORD("Invalid gossip record %s");
 
     public final String label;
 
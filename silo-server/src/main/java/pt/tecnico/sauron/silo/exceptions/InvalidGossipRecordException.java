@@ -0,0 +1,8 @@
+package pt.tecnico.sauron.silo.exceptions;
+
+public class InvalidGossipRecordException extends Exception {
+
+    public InvalidGossipRecordException(String reason) {
+        super(String.format(ErrorMessage.INVALID_GOSSIP_RECORD.label, reason));
+    }
+}
@@ -0,0 +1,100 @@
+package pt.tecnico.sauron.silo.api;
+
+import org.junit.jupiter.api.*;
+import pt.tecnico.sauron.silo.exceptions.DuplicateOperationException;
+import pt.tecnico.sauron.silo.grpc.CamJoinRequest;
+import pt.tecnico.sauron.silo.grpc.ClientRequest;
+import pt.tecnico.sauron.silo.grpc.OpCode;
+
+import java.util.Map;
+import java.util.UUID;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+//gossip between request handlers, rounds are run by hand the way the gossip gateway runs them
+public class ServerRequestHandlerTest {
+
+    private ServerRequestHandler replica1;
+    private ServerRequestHandler replica2;
+    private ServerRequestHandler replica3;
+
+    // initialization and clean-up for each test
+
+    @BeforeEach
+    public void setUp() {
+        replica1 = new ServerRequestHandler(1);
+        replica2 = new ServerRequestHandler(2);
+        replica3 = new ServerRequestHandler(3);
+    }
+
+    @Test
+    public void recordMissedInARoundIsAcceptedWhenRelayed() throws DuplicateOperationException {
+        LogRecord first = camJoin(replica1, "Tagus");
+
+        //round 1 only reaches replica 2, then replica 1 drops the record
+        replica1.prepareGossip();
+        deliver(replica1, replica2, Map.of());
+        replica1.expireGossip(0);
+
+        //round 2 reaches replica 3 with a timestamp that already covers the dropped record
+        LogRecord second = camJoin(replica1, "Alameda");
+        replica1.prepareGossip();
+        deliver(replica1, replica3, replica1.getGossipTS());
+        assertTrue(replica3.isExecuted(second.getId()));
+        assertFalse(replica3.isExecuted(first.getId()));
+
+        //replica 2 relays the record replica 3 missed
+        replica2.prepareGossip();
+        deliver(replica2, replica3, Map.of());
+        assertTrue(replica3.isExecuted(first.getId()));
+    }
+
+    @Test
+    public void relayedRecordIsOnlyLoggedOnce() throws DuplicateOperationException {
+        camJoin(replica1, "Tagus");
+        replica1.prepareGossip();
+
+        replica2.mergeIncomingLog(new GossipMessage(replica1.getGossipBacklog(0), Map.of()));
+        replica2.mergeIncomingLog(new GossipMessage(replica1.getGossipBacklog(0), Map.of()));
+
+        assertEquals(1, replica2.getStableUpdates().size());
+    }
+
+    @Test
+    public void controlLogRepairsRecordMissedByEveryRound() throws DuplicateOperationException {
+        LogRecord join = camJoin(replica1, "Tagus");
+        replica1.prepareGossip();
+        replica1.expireGossip(0);
+
+        assertNotEquals(replica1.getControlDigest(), replica3.getControlDigest());
+
+        //what anti-entropy pulls when the digests differ
+        replica3.mergeIncomingLog(new GossipMessage(replica1.getControlLog(), Map.of()));
+        execute(replica3);
+
+        assertTrue(replica3.isExecuted(join.getId()));
+        assertEquals(replica1.getControlDigest(), replica3.getControlDigest());
+        assertEquals(replica1.getControlCount(), replica3.getControlCount());
+    }
+
+    private static LogRecord camJoin(ServerRequestHandler handler, String camName) throws DuplicateOperationException {
+        ClientRequest request = ClientRequest.newBuilder()
+                .setOpId(UUID.randomUUID().toString())
+                .setCamJoinRequest(CamJoinRequest.newBuilder().setCamName(camName).setLatitude(38.7).setLongitude(-9.1))
+                .build();
+        LogRecord record = handler.processUpdateRequest(OpCode.CAM_JOIN, request, null);
+        handler.addRecordToLog(record);
+        handler.updateReplicaState(record);
+        return record;
+    }
+
+    private static void deliver(ServerRequestHandler from, ServerRequestHandler to, Map<Integer, Integer> repTs) {
+        to.mergeIncomingLog(new GossipMessage(from.getGossipBacklog(0), repTs));
+        execute(to);
+    }
+
+    private static void execute(ServerRequestHandler handler) {
+        for (LogRecord record : handler.getStableUpdates())
+            handler.updateReplicaState(record);
+    }
+}
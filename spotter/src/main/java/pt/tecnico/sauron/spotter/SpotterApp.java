@@ -10,6 +10,10 @@ import pt.tecnico.sauron.silo.grpc.*;
 import pt.ulisboa.tecnico.sdis.zk.ZKNamingException;
 
 import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Iterator;
 import java.util.List;
 import java.util.Scanner;
 
@@ -49,6 +53,8 @@ public class SpotterApp {
             siloFrontend = new SiloFrontend(host, port, repN);
 
             while (scanner.hasNextLine()) {
+                //a batch is not kept as the previous command, it is sent again whole when its replica fails
+                String[] batchTokens = null;
                 try {
                     String[] spotterTokens = scanner.nextLine().split(" ");
 
@@ -85,6 +91,12 @@ public class SpotterApp {
 
                             break;
                         }
+                        case "hedge": {
+
+                            siloFrontend.setHedging(!siloFrontend.isHedging());
+                            System.out.println("Hedged queries " + (siloFrontend.isHedging() ? "on" : "off"));
+                            break;
+                        }
                         case "help":
 
                             System.out.println("-----------------------------");
@@ -94,6 +106,8 @@ public class SpotterApp {
                             System.out.println("ping -> ping <name>");
                             System.out.println("clear -> clear");
                             System.out.println("init -> init");
+                            System.out.println("hedge -> hedge");
+                            System.out.println("batch -> batch <spot|trail> <file>");
                             System.out.println("-----------------------------");
 
                             break;
@@ -119,6 +133,12 @@ public class SpotterApp {
                                 }
                             }
 
+                            if (command.equals("batch")) {
+
+                                batchTokens = spotterTokens;
+                                runBatch(siloFrontend, type, id);
+                            }
+
                             if (command.equals("trail")) {
 
                                 String t = verifyType(type);
@@ -139,9 +159,13 @@ public class SpotterApp {
 
                         try {
 
-                            ClientResponse response = siloFrontend.runPreviousCommand();
+                            if (batchTokens != null)
+                                runBatch(siloFrontend, batchTokens[1], batchTokens[2]);
+                            else {
+                                ClientResponse response = siloFrontend.runPreviousCommand();
 
-                            checkResponse(response, siloFrontend);
+                                checkResponse(response, siloFrontend);
+                            }
                         }
                         catch (StatusRuntimeException s) {
                             //catch exception of request when request is re-sent because the previous replica went down
@@ -216,6 +240,45 @@ public class SpotterApp {
         }
     }
 
+    //Runs the batch command, keys read from a file, one type,id per line
+    private static void runBatch(SiloFrontend siloFrontend, String type, String file) {
+
+        List<List<String>> keys;
+        try {
+            keys = readKeys(file);
+        } catch (IOException e) {
+            System.err.println("Could not read file " + file);
+            return;
+        }
+
+        Iterator<BatchQueryResponse> responses = type.equals("trail") ?
+                siloFrontend.batchTrace(keys) : siloFrontend.batchTrack(keys);
+
+        //printed as they arrive
+        while (responses.hasNext()) {
+            BatchQueryResponse response = responses.next();
+            if (response.hasTrack())
+                trackResponseToString(response.getTrack(), siloFrontend);
+            else if (response.hasTrace())
+                traceResponseToString(response.getTrace(), siloFrontend);
+            else
+                System.out.println(response.getKey().getId() + ": " + response.getError());
+        }
+    }
+
+    //Reads the keys of a batch file, type,id per line
+    private static List<List<String>> readKeys(String file) throws IOException {
+        List<List<String>> keys = new ArrayList<>();
+        for (String line : Files.readAllLines(Paths.get(file))) {
+            String[] tokens = line.split(",");
+            //do nothing when there is a comment or empty line
+            if (tokens.length != 2 || line.startsWith("#"))
+                continue;
+            keys.add(List.of(verifyType(tokens[0].trim()), tokens[1].trim()));
+        }
+        return keys;
+    }
+
     //Verifies and returns the type of the object
     private static String verifyType(String string) {
         if (string.equals("car")) return "CAR";
@@ -228,12 +291,16 @@ public class SpotterApp {
         if (args.length < 2) {
 
             if (args.length == 1 && (args[0].equals("exit") || args[0].equals("help") ||
-                    args[0].equals("init") || args[0].equals("clear") || args[0].equals("ping"))) return true;
+                    args[0].equals("init") || args[0].equals("clear") || args[0].equals("ping") ||
+                    args[0].equals("hedge"))) return true;
 
         }
 
         if (args.length > 3) return false;
 
+        if (args[0].equals("batch"))
+            return args.length == 3 && (args[1].equals("spot") || args[1].equals("trail"));
+
         return args[0].equals("spot") || args[0].equals("trail");
 
     }